@@ -0,0 +1,257 @@
+package com.chw.filedownloader;
+
+import com.chw.filedownloader.transport.TransportResponse;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * @author chaihongwei 2026-10-18 20:20
+ * 缓存条目的新鲜度信息,与缓存文件一起保存在DiskLruCache中
+ * 过期的缓存通过条件请求向服务器确认,文件没有变化时服务器返回304,只需要一次往返,不需要重新下载
+ * 开启内容去重时,条目只是一个引用,文件内容保存在以内容摘要为key的条目中,见{@link #getContentKey()}
+ * 还保存了校验过的文件摘要,再次校验时直接比较,不需要重新读取文件
+ */
+final class CacheMetadata {
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "last-modified";
+    private static final String KEY_MAX_AGE = "max-age";
+    private static final String KEY_STORED_TIME = "stored-time";
+    private static final String KEY_CONTENT = "content";
+    private static final String KEY_DIGEST_PREFIX = "digest.";
+
+    /**
+     * 服务器返回的ETag和Last-Modified,没有时为""
+     */
+    private final String mETag;
+    private final String mLastModified;
+    /**
+     * 服务器通过Cache-Control指定的有效期,单位毫秒,没有指定时为-1
+     */
+    private final long mMaxAgeMillis;
+    /**
+     * 最近一次从服务器确认的时间,{@link System#currentTimeMillis()}
+     */
+    private final long mStoredTime;
+    /**
+     * 保存文件内容的条目的key,条目自己保存文件内容时为""
+     */
+    private final String mContentKey;
+    /**
+     * 校验过的文件摘要,摘要算法到小写十六进制摘要的映射
+     */
+    private final Map<String, String> mDigests;
+
+    private CacheMetadata(String eTag, String lastModified, long maxAgeMillis, long storedTime,
+                          String contentKey, Map<String, String> digests) {
+        this.mETag = eTag != null ? eTag : "";
+        this.mLastModified = lastModified != null ? lastModified : "";
+        this.mMaxAgeMillis = maxAgeMillis;
+        this.mStoredTime = storedTime;
+        this.mContentKey = contentKey != null ? contentKey : "";
+        this.mDigests = digests != null ? digests : new TreeMap<String, String>();
+    }
+
+    /**
+     * 从下载文件的响应中读取新鲜度信息
+     */
+    static CacheMetadata fromResponse(TransportResponse response) {
+        return new CacheMetadata(response.getHeader("ETag"), response.getHeader("Last-Modified"),
+                parseMaxAge(response.getHeader("Cache-Control")), System.currentTimeMillis(), null, null);
+    }
+
+    /**
+     * 没有响应头可用时的新鲜度信息,比如上次下载完成后还没有提交到缓存就退出了
+     */
+    static CacheMetadata empty() {
+        return new CacheMetadata(null, null, -1, System.currentTimeMillis(), null, null);
+    }
+
+    /**
+     * 服务器返回304后更新新鲜度信息,304响应中带有的新值覆盖旧值
+     */
+    CacheMetadata refresh(TransportResponse notModifiedResponse) {
+        String eTag = notModifiedResponse.getHeader("ETag");
+        String lastModified = notModifiedResponse.getHeader("Last-Modified");
+        String cacheControl = notModifiedResponse.getHeader("Cache-Control");
+        return new CacheMetadata(eTag != null ? eTag : mETag,
+                lastModified != null ? lastModified : mLastModified,
+                cacheControl != null ? parseMaxAge(cacheControl) : mMaxAgeMillis,
+                System.currentTimeMillis(), mContentKey, mDigests);
+    }
+
+    /**
+     * 文件内容保存在contentKey对应的条目中,当前条目只作为引用
+     */
+    CacheMetadata withContentKey(String contentKey) {
+        return new CacheMetadata(mETag, mLastModified, mMaxAgeMillis, mStoredTime, contentKey, mDigests);
+    }
+
+    /**
+     * 记录一个校验过的文件摘要
+     *
+     * @param algorithm 摘要算法,见{@link com.chw.filedownloader.utils.StreamingDigest}
+     * @param digest    小写十六进制的摘要
+     */
+    CacheMetadata withDigest(String algorithm, String digest) {
+        Map<String, String> digests = new TreeMap<>(mDigests);
+        digests.put(algorithm, digest);
+        return new CacheMetadata(mETag, mLastModified, mMaxAgeMillis, mStoredTime, mContentKey, digests);
+    }
+
+    /**
+     * 校验过的文件摘要
+     *
+     * @return 没有校验过这种摘要时返回null
+     */
+    String getDigest(String algorithm) {
+        return mDigests.get(algorithm);
+    }
+
+    String getETag() {
+        return mETag;
+    }
+
+    String getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * 保存文件内容的条目的key,条目自己保存文件内容时为""
+     */
+    String getContentKey() {
+        return mContentKey;
+    }
+
+    /**
+     * 是否只是对其他条目中文件内容的引用
+     */
+    boolean isReference() {
+        return !mContentKey.isEmpty();
+    }
+
+    /**
+     * 是否可以发起条件请求
+     */
+    boolean hasValidators() {
+        return !mETag.isEmpty() || !mLastModified.isEmpty();
+    }
+
+    /**
+     * 缓存是否还在有效期内
+     * 服务器指定的有效期和客户端设置的有效期都是上限,取较小的一个,都没有时永不过期
+     *
+     * @param clientTtlMillis 客户端设置的有效期,小于0表示不限制
+     */
+    boolean isFresh(long now, long clientTtlMillis) {
+        long lifetime = -1;
+        if (mMaxAgeMillis >= 0) {
+            lifetime = mMaxAgeMillis;
+        }
+        if (clientTtlMillis >= 0 && (lifetime < 0 || clientTtlMillis < lifetime)) {
+            lifetime = clientTtlMillis;
+        }
+        if (lifetime < 0) {
+            return true;
+        }
+
+        long age = now - mStoredTime;
+        return age >= 0 && age < lifetime;
+    }
+
+    /**
+     * 序列化为"key=value"格式的多行文本
+     */
+    String serialize() {
+        StringBuilder builder = new StringBuilder(KEY_ETAG + "=" + mETag + "\n"
+                + KEY_LAST_MODIFIED + "=" + mLastModified + "\n"
+                + KEY_MAX_AGE + "=" + mMaxAgeMillis + "\n"
+                + KEY_STORED_TIME + "=" + mStoredTime + "\n"
+                + KEY_CONTENT + "=" + mContentKey + "\n");
+        for (Map.Entry<String, String> digest : mDigests.entrySet()) {
+            builder.append(KEY_DIGEST_PREFIX).append(digest.getKey()).append('=').append(digest.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 解析{@link #serialize()}的结果
+     * 旧版本的缓存条目没有新鲜度信息,升级后这个值为空,当作保存时间未知的空信息,
+     * 没有设置有效期时继续使用,设置了有效期时已经过期
+     *
+     * @return 内容损坏时返回null
+     */
+    static CacheMetadata parse(String text) {
+        if (text == null) {
+            return null;
+        }
+        if (text.isEmpty()) {
+            return new CacheMetadata(null, null, -1, 0, null, null);
+        }
+
+        String eTag = null;
+        String lastModified = null;
+        long maxAgeMillis = -1;
+        long storedTime = -1;
+        String contentKey = null;
+        Map<String, String> digests = new TreeMap<>();
+        try {
+            for (String line : text.split("\n")) {
+                int index = line.indexOf('=');
+                if (index < 0) {
+                    continue;
+                }
+                String key = line.substring(0, index);
+                String value = line.substring(index + 1);
+                if (KEY_ETAG.equals(key)) {
+                    eTag = value;
+                } else if (KEY_LAST_MODIFIED.equals(key)) {
+                    lastModified = value;
+                } else if (KEY_MAX_AGE.equals(key)) {
+                    maxAgeMillis = Long.parseLong(value);
+                } else if (KEY_STORED_TIME.equals(key)) {
+                    storedTime = Long.parseLong(value);
+                } else if (KEY_CONTENT.equals(key)) {
+                    contentKey = value;
+                } else if (key.startsWith(KEY_DIGEST_PREFIX)) {
+                    digests.put(key.substring(KEY_DIGEST_PREFIX.length()), value);
+                }
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+
+        if (storedTime < 0) {
+            return null;
+        }
+        return new CacheMetadata(eTag, lastModified, maxAgeMillis, storedTime, contentKey, digests);
+    }
+
+    /**
+     * 解析Cache-Control中的有效期,no-cache和no-store表示每次都需要向服务器确认
+     *
+     * @return 有效期, 单位毫秒, 没有指定时返回-1
+     */
+    private static long parseMaxAge(String cacheControl) {
+        if (cacheControl == null) {
+            return -1;
+        }
+
+        long maxAgeMillis = -1;
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim().toLowerCase();
+            if ("no-cache".equals(directive) || "no-store".equals(directive)) {
+                return 0;
+            }
+            if (directive.startsWith("max-age=")) {
+                try {
+                    maxAgeMillis = Math.max(0, Long.parseLong(directive.substring("max-age=".length()).trim()))
+                            * 1000;
+                } catch (NumberFormatException ex) {
+                    //忽略格式错误的有效期
+                }
+            }
+        }
+        return maxAgeMillis;
+    }
+}
@@ -0,0 +1,252 @@
+package com.chw.filedownloader;
+
+import com.chw.filedownloader.utils.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author chaihongwei 2026-10-18 10:12
+ * 分段下载记录,与下载中的文件放在一起,记录每一段的范围和已下载的字节数,
+ * 断点续传时只需要重新请求每一段中还没有下载的部分
+ * 同时记录服务器返回的ETag和Last-Modified,续传时用来确认服务器上的文件没有变化
+ */
+final class DownloadRecord {
+    /**
+     * 记录文件格式版本号,格式变化时递增,版本不一致的记录文件会被丢弃
+     */
+    private static final int VERSION = 2;
+
+    private final File mRecordFile;
+    /**
+     * 文件总大小
+     */
+    private final long mTotalSize;
+    /**
+     * 服务器返回的ETag和Last-Modified,没有时为""
+     */
+    private final String mETag;
+    private final String mLastModified;
+    /**
+     * 每一段的开始位置(包含)
+     */
+    private final long[] mStarts;
+    /**
+     * 每一段的结束位置(包含)
+     */
+    private final long[] mEnds;
+    /**
+     * 每一段已经下载的字节数,各分段线程只会更新自己的那一项
+     */
+    private final AtomicLongArray mFinished;
+
+    private DownloadRecord(File recordFile, long totalSize, String eTag, String lastModified,
+                           long[] starts, long[] ends, long[] finished) {
+        this.mRecordFile = recordFile;
+        this.mTotalSize = totalSize;
+        this.mETag = eTag != null ? eTag : "";
+        this.mLastModified = lastModified != null ? lastModified : "";
+        this.mStarts = starts;
+        this.mEnds = ends;
+        this.mFinished = new AtomicLongArray(finished);
+    }
+
+    /**
+     * 将totalSize大小的文件平均拆分成segmentCount段,最后一段包含余下的字节
+     */
+    static DownloadRecord create(File recordFile, long totalSize, String eTag, String lastModified,
+                                 int segmentCount) {
+        long[] starts = new long[segmentCount];
+        long[] ends = new long[segmentCount];
+        long segmentSize = totalSize / segmentCount;
+        for (int i = 0; i < segmentCount; i++) {
+            starts[i] = i * segmentSize;
+            ends[i] = (i == segmentCount - 1) ? totalSize - 1 : starts[i] + segmentSize - 1;
+        }
+        return new DownloadRecord(recordFile, totalSize, eTag, lastModified, starts, ends,
+                new long[segmentCount]);
+    }
+
+    /**
+     * 读取分段记录
+     *
+     * @return 记录文件不存在或者内容损坏时返回null
+     */
+    static DownloadRecord load(File recordFile) {
+        if (!recordFile.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(recordFile)));
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+
+            long totalSize = in.readLong();
+            String eTag = in.readUTF();
+            String lastModified = in.readUTF();
+            int segmentCount = in.readInt();
+            if (totalSize <= 0 || segmentCount <= 0) {
+                return null;
+            }
+
+            long[] starts = new long[segmentCount];
+            long[] ends = new long[segmentCount];
+            long[] finished = new long[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                starts[i] = in.readLong();
+                ends[i] = in.readLong();
+                finished[i] = in.readLong();
+                if (starts[i] < 0 || ends[i] >= totalSize || finished[i] < 0
+                        || finished[i] > ends[i] - starts[i] + 1) {
+                    return null;
+                }
+            }
+            return new DownloadRecord(recordFile, totalSize, eTag, lastModified, starts, ends, finished);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * 保存分段记录,先写入临时文件再重命名,避免写到一半时进程退出导致记录文件损坏
+     */
+    synchronized boolean save() {
+        return save(snapshotFinished());
+    }
+
+    /**
+     * 保存断点,先记下每一段已写入的字节数,再让文件落盘,最后保存记下的字节数
+     * 各分段都是写入数据后才更新进度,所以记下的字节数一定已经写入了channel,落盘后都是可信的,
+     * 落盘过程中其他分段新写入的数据等下一次断点再记录
+     *
+     * @param channel 下载中的文件
+     * @param force   是否让文件落盘
+     */
+    synchronized boolean checkpoint(FileChannel channel, boolean force) throws IOException {
+        long[] finished = snapshotFinished();
+        if (force) {
+            channel.force(false);
+        }
+        return save(finished);
+    }
+
+    private long[] snapshotFinished() {
+        long[] finished = new long[mStarts.length];
+        for (int i = 0; i < finished.length; i++) {
+            finished[i] = mFinished.get(i);
+        }
+        return finished;
+    }
+
+    private boolean save(long[] finished) {
+        File tmpFile = new File(mRecordFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(VERSION);
+            out.writeLong(mTotalSize);
+            out.writeUTF(mETag);
+            out.writeUTF(mLastModified);
+            out.writeInt(mStarts.length);
+            for (int i = 0; i < mStarts.length; i++) {
+                out.writeLong(mStarts[i]);
+                out.writeLong(mEnds[i]);
+                out.writeLong(finished[i]);
+            }
+            out.close();
+            out = null;
+
+            return IOUtils.renameFileName(tmpFile, mRecordFile);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return false;
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * 删除分段记录
+     */
+    void delete() {
+        mRecordFile.delete();
+    }
+
+    long getTotalSize() {
+        return mTotalSize;
+    }
+
+    String getETag() {
+        return mETag;
+    }
+
+    String getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * 续传时If-Range请求头的值,优先使用ETag,If-Range不支持弱ETag,此时使用Last-Modified
+     *
+     * @return 没有可用的校验值时返回null
+     */
+    String getIfRange() {
+        if (!mETag.isEmpty() && !mETag.startsWith("W/")) {
+            return mETag;
+        }
+        if (!mLastModified.isEmpty()) {
+            return mLastModified;
+        }
+        return null;
+    }
+
+    int getSegmentCount() {
+        return mStarts.length;
+    }
+
+    /**
+     * 第index段下一次需要请求的开始位置
+     */
+    long getNextPosition(int index) {
+        return mStarts[index] + mFinished.get(index);
+    }
+
+    long getEnd(int index) {
+        return mEnds[index];
+    }
+
+    boolean isSegmentFinished(int index) {
+        return getNextPosition(index) > mEnds[index];
+    }
+
+    /**
+     * 第index段又下载完成了length字节
+     */
+    void addFinished(int index, long length) {
+        mFinished.addAndGet(index, length);
+    }
+
+    /**
+     * 所有分段已下载的字节数之和
+     */
+    long getFinishedSize() {
+        long finishedSize = 0;
+        for (int i = 0; i < mStarts.length; i++) {
+            finishedSize += mFinished.get(i);
+        }
+        return finishedSize;
+    }
+}
@@ -0,0 +1,527 @@
+package com.chw.filedownloader;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.chw.filedownloader.utils.RateLimiter;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author chaihongwei 2026-10-18 15:20
+ * 下载调度器,按优先级排队执行下载任务,并限制同时下载的任务总数和每个域名同时下载的任务数
+ * 高优先级的任务进入队列时,如果没有空闲的下载名额,会暂停一个正在下载的低优先级任务,让出名额,
+ * 被暂停的任务重新排队,之后从断点继续下载
+ * 暂停,抢占和取消后任务立即重新排队或者结束,但名额要等下载线程真正退出后才让出,
+ * 同一个url的下载被其他调用方共享时,下载会为其他调用方继续进行,直到结束前都占用名额,
+ * 保证同时下载的任务总数和每个域名的任务数不超过限制
+ */
+public final class DownloadScheduler {
+    /**
+     * 后台预下载等低优先级任务
+     */
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    /**
+     * 用户主动发起的下载
+     */
+    public static final int PRIORITY_HIGH = 2;
+
+    public static final int STATE_QUEUED = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_PAUSED = 2;
+    public static final int STATE_COMPLETED = 3;
+    public static final int STATE_FAILED = 4;
+    public static final int STATE_CANCELED = 5;
+
+    private static Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private final FileDownloader mFileDownloader;
+    private final int mMaxConcurrentDownloads;
+    private final int mMaxDownloadsPerHost;
+
+    /**
+     * 执行下载的线程池,同时运行的线程数由调度器控制,不会超过mMaxConcurrentDownloads
+     */
+    private final ExecutorService mExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+
+    /**
+     * 等待下载的任务,包括被暂停的任务
+     */
+    private final List<ScheduledDownload> mQueuedDownloads = new ArrayList<>();
+    private final List<ScheduledDownload> mRunningDownloads = new ArrayList<>();
+    /**
+     * 已经作废但下载线程还没有退出的执行,仍然占用名额
+     */
+    private final List<Run> mStoppingRuns = new ArrayList<>();
+    /**
+     * 每个域名占用的名额数,包括已经作废但下载线程还没有退出的执行
+     */
+    private final Map<String, Integer> mRunningPerHost = new HashMap<>();
+    /**
+     * 入队序号,优先级相同时先入队的先执行
+     */
+    private long mNextSequence;
+
+    DownloadScheduler(FileDownloader fileDownloader, int maxConcurrentDownloads, int maxDownloadsPerHost) {
+        this.mFileDownloader = fileDownloader;
+        this.mMaxConcurrentDownloads = maxConcurrentDownloads;
+        this.mMaxDownloadsPerHost = maxDownloadsPerHost;
+    }
+
+    /**
+     * 将下载任务加入队列
+     *
+     * @param fileUrl  网络文件地址
+     * @param priority 优先级,{@link #PRIORITY_LOW},{@link #PRIORITY_NORMAL}或{@link #PRIORITY_HIGH}
+     * @param callback 进度和结果回调
+     * @return 可以用来暂停, 恢复, 调整优先级和取消的任务
+     */
+    public ScheduledDownload enqueue(@NonNull String fileUrl, int priority, @Nullable IDownloadCallback callback) {
+        return enqueue(fileUrl, priority, null, callback);
+    }
+
+    /**
+     * 将下载任务加入队列,并使用指定的共享限速器,比如后台预下载的任务共用一个较低的限速
+     *
+     * @param fileUrl           网络文件地址
+     * @param priority          优先级,{@link #PRIORITY_LOW},{@link #PRIORITY_NORMAL}或{@link #PRIORITY_HIGH}
+     * @param globalRateLimiter 共享限速器,为null时使用配置中的全局限速器
+     * @param callback          进度和结果回调
+     * @return 可以用来暂停, 恢复, 调整优先级和取消的任务
+     */
+    public ScheduledDownload enqueue(@NonNull String fileUrl, int priority, @Nullable RateLimiter globalRateLimiter,
+                                     @Nullable IDownloadCallback callback) {
+        ScheduledDownload download = new ScheduledDownload(fileUrl, priority, globalRateLimiter, callback);
+        synchronized (this) {
+            download.mSequence = mNextSequence++;
+            mQueuedDownloads.add(download);
+            promoteAndPreempt();
+        }
+        return download;
+    }
+
+    /**
+     * 队列中等待的任务数,包括被暂停的任务
+     */
+    public synchronized int getQueuedCount() {
+        return mQueuedDownloads.size();
+    }
+
+    public synchronized int getRunningCount() {
+        return mRunningDownloads.size();
+    }
+
+    /**
+     * 在名额允许的情况下,按优先级启动等待中的任务,
+     * 然后检查是否需要暂停低优先级的任务给高优先级的任务让出名额
+     */
+    private void promoteAndPreempt() {
+        while (mRunningDownloads.size() + mStoppingRuns.size() < mMaxConcurrentDownloads) {
+            ScheduledDownload next = pollNext();
+            if (next == null) {
+                break;
+            }
+            start(next);
+        }
+
+        //正在停止的执行退出后让出的名额按优先级留给等待的任务,其余的任务才需要抢占
+        int stopping = mStoppingRuns.size();
+        Map<String, Integer> stoppingPerHost = new HashMap<>();
+        for (Run run : mStoppingRuns) {
+            String host = run.mDownload.mHost;
+            stoppingPerHost.put(host, getCount(stoppingPerHost, host) + 1);
+        }
+
+        for (ScheduledDownload waiting : getWaitingDownloads()) {
+            if (getRunningCount(waiting.mHost) >= mMaxDownloadsPerHost) {
+                //受限于域名并发数时,只有同一域名的执行退出后才能启动
+                int count = getCount(stoppingPerHost, waiting.mHost);
+                if (count > 0) {
+                    stoppingPerHost.put(waiting.mHost, count - 1);
+                    stopping--;
+                    continue;
+                }
+            } else if (stopping > 0) {
+                stopping--;
+                continue;
+            }
+
+            ScheduledDownload victim = findVictim(waiting);
+            if (victim != null) {
+                //给高优先级任务让出名额,重新排队,保留原来的入队顺序,下载线程退出后启动等待的任务
+                detach(victim, STATE_QUEUED);
+            }
+        }
+    }
+
+    /**
+     * 等待中的任务,按优先级从高到低,优先级相同时先入队的在前
+     */
+    private List<ScheduledDownload> getWaitingDownloads() {
+        List<ScheduledDownload> waiting = new ArrayList<>();
+        for (ScheduledDownload download : mQueuedDownloads) {
+            if (download.mState == STATE_QUEUED) {
+                waiting.add(download);
+            }
+        }
+        Collections.sort(waiting, new Comparator<ScheduledDownload>() {
+            @Override
+            public int compare(ScheduledDownload o1, ScheduledDownload o2) {
+                if (o1.mPriority != o2.mPriority) {
+                    return o1.mPriority > o2.mPriority ? -1 : 1;
+                }
+                return o1.mSequence < o2.mSequence ? -1 : (o1.mSequence == o2.mSequence ? 0 : 1);
+            }
+        });
+        return waiting;
+    }
+
+    /**
+     * 查找可以给等待的任务让出名额的正在下载的任务,优先选择优先级最低的
+     */
+    private ScheduledDownload findVictim(ScheduledDownload waiting) {
+        boolean hostFull = getRunningCount(waiting.mHost) >= mMaxDownloadsPerHost;
+        ScheduledDownload victim = null;
+        for (ScheduledDownload running : mRunningDownloads) {
+            if (running.mPriority >= waiting.mPriority) {
+                continue;
+            }
+            //等待的任务受限于域名并发数时,只有暂停同一域名的任务才能让出名额
+            if (hostFull && !running.mHost.equals(waiting.mHost)) {
+                continue;
+            }
+            if (victim == null || running.mPriority < victim.mPriority) {
+                victim = running;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * 正在下载的任务的当前执行作废,下载线程在下一次读取数据时停止,
+     * 下载被其他调用方共享时继续为它们下载,结果不再影响这个任务,
+     * 名额在下载线程退出后才让出
+     *
+     * @param state 作废后的状态,{@link #STATE_QUEUED}和{@link #STATE_PAUSED}时重新排队
+     */
+    private void detach(ScheduledDownload download, int state) {
+        Run run = download.mRun;
+        run.mStopped = true;
+        download.mRun = null;
+        mRunningDownloads.remove(download);
+        mStoppingRuns.add(run);
+        download.mState = state;
+        if (state != STATE_CANCELED) {
+            mQueuedDownloads.add(download);
+        }
+    }
+
+    /**
+     * 下载线程退出后让出执行占用的名额
+     */
+    private void releaseSlot(Run run) {
+        if (!mStoppingRuns.remove(run)) {
+            mRunningDownloads.remove(run.mDownload);
+        }
+        String host = run.mDownload.mHost;
+        int count = getRunningCount(host) - 1;
+        if (count > 0) {
+            mRunningPerHost.put(host, count);
+        } else {
+            mRunningPerHost.remove(host);
+        }
+    }
+
+    /**
+     * 取出下一个可以执行的任务
+     */
+    private ScheduledDownload pollNext() {
+        ScheduledDownload next = peekNext(false);
+        if (next != null) {
+            mQueuedDownloads.remove(next);
+        }
+        return next;
+    }
+
+    /**
+     * 查找优先级最高的等待任务
+     *
+     * @param ignoreHostLimit 是否忽略域名的并发限制
+     */
+    private ScheduledDownload peekNext(boolean ignoreHostLimit) {
+        ScheduledDownload next = null;
+        for (ScheduledDownload download : mQueuedDownloads) {
+            if (download.mState != STATE_QUEUED) {
+                continue;
+            }
+            if (!ignoreHostLimit && getRunningCount(download.mHost) >= mMaxDownloadsPerHost) {
+                continue;
+            }
+            if (next == null || download.mPriority > next.mPriority
+                    || (download.mPriority == next.mPriority && download.mSequence < next.mSequence)) {
+                next = download;
+            }
+        }
+        return next;
+    }
+
+    private int getRunningCount(String host) {
+        return getCount(mRunningPerHost, host);
+    }
+
+    private static int getCount(Map<String, Integer> counts, String host) {
+        Integer count = counts.get(host);
+        return count == null ? 0 : count;
+    }
+
+    private void start(final ScheduledDownload download) {
+        download.mState = STATE_RUNNING;
+        final Run run = new Run(download);
+        download.mRun = run;
+        mRunningDownloads.add(download);
+        mRunningPerHost.put(download.mHost, getRunningCount(download.mHost) + 1);
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String cachePath = "";
+                boolean failed = false;
+                try {
+                    DownloadTask task = mFileDownloader.newTask(download.mFileUrl, run);
+                    if (download.mGlobalRateLimiter != null) {
+                        task.setGlobalRateLimiter(download.mGlobalRateLimiter);
+                    }
+                    cachePath = mFileDownloader.execute(task);
+                    failed = task.isTransferFailed();
+                } finally {
+                    onFinished(run, cachePath, failed);
+                }
+            }
+        });
+    }
+
+    /**
+     * 一次执行结束,当前的执行根据结果通知任务结束,
+     * 已经作废的执行只在下载真正失败时结束等待重新执行的任务,避免失败的任务反复排队
+     *
+     * @param failed 下载是否真正失败了,而不是因为取消而停止
+     */
+    private void onFinished(Run run, String cachePath, boolean failed) {
+        ScheduledDownload download = run.mDownload;
+        boolean notify = false;
+        synchronized (this) {
+            releaseSlot(run);
+            if (download.mRun == run) {
+                download.mRun = null;
+
+                if (!TextUtils.isEmpty(cachePath)) {
+                    download.mState = STATE_COMPLETED;
+                } else if (download.isCallbackCanceled()) {
+                    download.mState = STATE_CANCELED;
+                } else {
+                    download.mState = STATE_FAILED;
+                }
+                notify = true;
+            } else if (failed && download.mState == STATE_QUEUED) {
+                //被抢占后,下载为其他调用方继续进行时失败了,不再重新排队
+                mQueuedDownloads.remove(download);
+                download.mState = STATE_FAILED;
+                notify = true;
+            }
+
+            promoteAndPreempt();
+        }
+
+        if (notify) {
+            download.notifyComplete(cachePath);
+        }
+    }
+
+    /**
+     * 任务的一次执行,被暂停,抢占或者取消后立即作废,下载线程退出前仍然占用名额
+     */
+    private static final class Run implements IDownloadListener {
+        private final ScheduledDownload mDownload;
+        private volatile boolean mStopped;
+
+        private Run(ScheduledDownload download) {
+            this.mDownload = download;
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return mStopped || mDownload.isCallbackCanceled();
+        }
+
+        @Override
+        public void onProgress(int progress, long downloadedSize, long totalSize) {
+            if (!mStopped) {
+                mDownload.dispatchProgress(progress, downloadedSize, totalSize);
+            }
+        }
+    }
+
+    /**
+     * 调度器中的一个下载任务
+     */
+    public final class ScheduledDownload {
+        private final String mFileUrl;
+        private final String mHost;
+        private final IDownloadCallback mCallback;
+        /**
+         * 共享限速器,为null时使用配置中的全局限速器
+         */
+        private final RateLimiter mGlobalRateLimiter;
+        private final CountDownLatch mCompletedLatch = new CountDownLatch(1);
+        private int mPriority;
+        private long mSequence;
+        private volatile int mState = STATE_QUEUED;
+        /**
+         * 正在下载时的当前执行,没有在下载时为null
+         */
+        private Run mRun;
+        private volatile String mResult = "";
+
+        private ScheduledDownload(String fileUrl, int priority, RateLimiter globalRateLimiter,
+                                  IDownloadCallback callback) {
+            this.mFileUrl = fileUrl;
+            this.mHost = getHost(fileUrl);
+            this.mPriority = priority;
+            this.mGlobalRateLimiter = globalRateLimiter;
+            this.mCallback = callback;
+        }
+
+        public String getFileUrl() {
+            return mFileUrl;
+        }
+
+        public int getPriority() {
+            synchronized (DownloadScheduler.this) {
+                return mPriority;
+            }
+        }
+
+        public int getState() {
+            return mState;
+        }
+
+        /**
+         * 调整优先级,对等待中的任务立即生效,可能因此抢占低优先级任务的名额
+         */
+        public void setPriority(int priority) {
+            synchronized (DownloadScheduler.this) {
+                mPriority = priority;
+                if (mState == STATE_QUEUED || mState == STATE_PAUSED) {
+                    promoteAndPreempt();
+                }
+            }
+        }
+
+        /**
+         * 暂停任务,等待中的任务不再被调度,正在下载的任务停止并保留已下载的部分,下载线程退出后让出名额
+         */
+        public void pause() {
+            synchronized (DownloadScheduler.this) {
+                if (mState == STATE_QUEUED) {
+                    mState = STATE_PAUSED;
+                } else if (mState == STATE_RUNNING) {
+                    detach(this, STATE_PAUSED);
+                    promoteAndPreempt();
+                }
+            }
+        }
+
+        /**
+         * 恢复被暂停的任务,重新参与调度
+         */
+        public void resume() {
+            synchronized (DownloadScheduler.this) {
+                if (mState == STATE_PAUSED) {
+                    mState = STATE_QUEUED;
+                    promoteAndPreempt();
+                }
+            }
+        }
+
+        /**
+         * 取消任务,回调{@link IDownloadCallback#onComplete}时传入""
+         */
+        public void cancel() {
+            boolean notify = false;
+            synchronized (DownloadScheduler.this) {
+                if (mState == STATE_QUEUED || mState == STATE_PAUSED) {
+                    mQueuedDownloads.remove(this);
+                    mState = STATE_CANCELED;
+                    notify = true;
+                } else if (mState == STATE_RUNNING) {
+                    detach(this, STATE_CANCELED);
+                    notify = true;
+                    promoteAndPreempt();
+                }
+            }
+
+            if (notify) {
+                notifyComplete("");
+            }
+        }
+
+        /**
+         * 阻塞等待任务结束,不能在主线程中调用
+         *
+         * @return 下载完成后的缓存文件路径, 下载失败或者被取消时返回""
+         */
+        public String await() throws InterruptedException {
+            mCompletedLatch.await();
+            return mResult;
+        }
+
+        private void dispatchProgress(int progress, long downloadedSize, long totalSize) {
+            if (mCallback != null) {
+                mCallback.onProgress(progress, downloadedSize, totalSize);
+            }
+        }
+
+        private boolean isCallbackCanceled() {
+            return mCallback != null && mCallback.isCanceled();
+        }
+
+        private void notifyComplete(final String cachePath) {
+            mResult = cachePath;
+            mCompletedLatch.countDown();
+
+            if (mCallback != null) {
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallback.onComplete(cachePath);
+                    }
+                });
+            }
+        }
+    }
+
+    private static String getHost(String fileUrl) {
+        try {
+            return new URL(fileUrl).getHost();
+        } catch (Exception ex) {
+            return "";
+        }
+    }
+}
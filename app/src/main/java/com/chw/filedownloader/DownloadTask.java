@@ -0,0 +1,297 @@
+package com.chw.filedownloader;
+
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import com.chw.filedownloader.utils.RateLimiter;
+import com.chw.filedownloader.utils.StreamingDigest;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author chaihongwei 2026-10-18 17:10
+ * 下载任务,保存单个下载自己的字节计数,耗时,状态和取消标记,
+ * 多个下载任务可以在同一个FileDownloader上并行执行,互不影响
+ */
+public final class DownloadTask {
+    public static final int STATE_PENDING = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_COMPLETED = 2;
+    public static final int STATE_FAILED = 3;
+    public static final int STATE_CANCELED = 4;
+
+    private final String mFileUrl;
+    private final String mFileCacheKey;
+    private final IDownloadListener mDownloadListener;
+    /**
+     * 期望的摘要和大小,不校验时为null
+     */
+    private final ExpectedContent mExpectedContent;
+
+    private volatile int mState = STATE_PENDING;
+    private volatile boolean mCanceled;
+    /**
+     * 已经下载完的字节大小,用于计算下载进度
+     */
+    private final AtomicLong mDownloadedSize = new AtomicLong();
+    /**
+     * 文件总大小,用于计算下载进度,未知时为-1
+     */
+    private volatile long mTotalSize = -1;
+    private volatile long mStartTime;
+    private volatile long mEndTime;
+    private volatile String mResult = "";
+    /**
+     * 这次下载的最大下载速度和共享的限速器,创建时取自配置,执行前可以修改
+     */
+    private volatile long mMaxBytesPerSecond;
+    private volatile RateLimiter mGlobalRateLimiter;
+
+    /**
+     * 真正执行下载时,合并了所有等待同一个url的任务后的取消控制和进度回调
+     * 只有真正执行下载的任务才会设置,附加到其他下载上的任务为null
+     */
+    private volatile IDownloadListener mTransferListener;
+    /**
+     * 真正执行下载时,当前下载的限速器,分段下载时所有分段共享
+     */
+    private volatile RateLimiter mRateLimiter;
+    /**
+     * 真正执行下载时,从服务器响应中得到的缓存新鲜度信息,提交到缓存时一起保存
+     */
+    private volatile CacheMetadata mCacheMetadata;
+    /**
+     * 真正执行下载时,单个连接从头写入文件的同时计算出的摘要,分段下载或者断点续传时为null
+     */
+    private volatile StreamingDigest mContentDigest;
+    /**
+     * 下载是否真正失败了,而不是因为取消而停止,任务自己取消后下载为其他任务继续进行并失败时也为true
+     */
+    private volatile boolean mTransferFailed;
+
+    DownloadTask(String fileUrl, String fileCacheKey, IDownloadListener downloadListener,
+                 ExpectedContent expectedContent) {
+        this.mFileUrl = fileUrl;
+        this.mFileCacheKey = fileCacheKey;
+        this.mDownloadListener = downloadListener;
+        this.mExpectedContent = expectedContent;
+    }
+
+    public String getFileUrl() {
+        return mFileUrl;
+    }
+
+    public String getFileCacheKey() {
+        return mFileCacheKey;
+    }
+
+    /**
+     * 期望的摘要和大小,不校验时为null
+     */
+    public ExpectedContent getExpectedContent() {
+        return mExpectedContent;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public long getDownloadedSize() {
+        return mDownloadedSize.get();
+    }
+
+    public long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * 下载进度,0~100,文件总大小未知时为0
+     */
+    public int getProgress() {
+        return computeProgress(mDownloadedSize.get(), mTotalSize);
+    }
+
+    /**
+     * 开始执行的时间,{@link SystemClock#elapsedRealtime()},还没有开始时为0
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * 执行结束的时间,{@link SystemClock#elapsedRealtime()},还没有结束时为0
+     */
+    public long getEndTime() {
+        return mEndTime;
+    }
+
+    /**
+     * 已经执行的时长,单位毫秒
+     */
+    public long getElapsedMillis() {
+        if (mStartTime == 0) {
+            return 0;
+        }
+        long endTime = mEndTime != 0 ? mEndTime : SystemClock.elapsedRealtime();
+        return endTime - mStartTime;
+    }
+
+    /**
+     * 下载结果,下载完成后的缓存文件路径,没有完成时为""
+     */
+    public String getResult() {
+        return mResult;
+    }
+
+    public long getMaxBytesPerSecond() {
+        return mMaxBytesPerSecond;
+    }
+
+    /**
+     * 设置这次下载的最大下载速度,单位字节/秒,小于等于0表示不限速,默认取自配置,需要在执行前设置
+     * 同一个url同时被多个任务下载时,以真正执行下载的任务的设置为准
+     */
+    public DownloadTask setMaxBytesPerSecond(long maxBytesPerSecond) {
+        this.mMaxBytesPerSecond = maxBytesPerSecond;
+        return this;
+    }
+
+    public RateLimiter getGlobalRateLimiter() {
+        return mGlobalRateLimiter;
+    }
+
+    /**
+     * 设置这次下载使用的共享限速器,为null表示不受共享限速的限制,默认取自配置,需要在执行前设置
+     * 比如后台预下载的任务共用一个限速器,与前台下载使用同一个FileDownloader也不会互相影响
+     */
+    public DownloadTask setGlobalRateLimiter(@Nullable RateLimiter globalRateLimiter) {
+        this.mGlobalRateLimiter = globalRateLimiter;
+        return this;
+    }
+
+    /**
+     * 取消任务,正在下载时会在下一次读取数据时停止
+     */
+    public void cancel() {
+        mCanceled = true;
+    }
+
+    public boolean isCanceled() {
+        return mCanceled || (mDownloadListener != null && mDownloadListener.isCanceled());
+    }
+
+    void onStart() {
+        mStartTime = SystemClock.elapsedRealtime();
+        mState = STATE_RUNNING;
+    }
+
+    void onFinish(String result) {
+        mResult = result;
+        mEndTime = SystemClock.elapsedRealtime();
+        if (!result.isEmpty()) {
+            mState = STATE_COMPLETED;
+        } else if (isCanceled()) {
+            mState = STATE_CANCELED;
+        } else {
+            mState = STATE_FAILED;
+        }
+    }
+
+    /**
+     * 成为真正执行下载的任务
+     *
+     * @param transferListener 合并后的取消控制和进度回调
+     * @param rateLimiter      当前下载的限速器
+     */
+    void beginTransfer(IDownloadListener transferListener, RateLimiter rateLimiter) {
+        this.mTransferListener = transferListener;
+        this.mRateLimiter = rateLimiter;
+    }
+
+    RateLimiter getRateLimiter() {
+        return mRateLimiter;
+    }
+
+    CacheMetadata getCacheMetadata() {
+        return mCacheMetadata;
+    }
+
+    void setCacheMetadata(CacheMetadata cacheMetadata) {
+        this.mCacheMetadata = cacheMetadata;
+    }
+
+    StreamingDigest getContentDigest() {
+        return mContentDigest;
+    }
+
+    void setContentDigest(StreamingDigest contentDigest) {
+        this.mContentDigest = contentDigest;
+    }
+
+    boolean isTransferFailed() {
+        return mTransferFailed;
+    }
+
+    void setTransferFailed(boolean transferFailed) {
+        this.mTransferFailed = transferFailed;
+    }
+
+    /**
+     * 下载是否需要停止,只有等待这个url的所有任务都取消了才停止
+     */
+    boolean isTransferCanceled() {
+        IDownloadListener transferListener = mTransferListener;
+        return transferListener != null ? transferListener.isCanceled() : isCanceled();
+    }
+
+    /**
+     * 开始一次网络传输前重置字节计数,比如断点续传时从已下载的位置开始
+     */
+    void resetProgress(long downloadedSize, long totalSize) {
+        mDownloadedSize.set(downloadedSize);
+        mTotalSize = totalSize;
+    }
+
+    /**
+     * 又下载完成了length字节
+     *
+     * @return 累计已下载的字节数
+     */
+    long addDownloadedSize(long length) {
+        return mDownloadedSize.addAndGet(length);
+    }
+
+    /**
+     * 发布当前进度,由合并后的listener决定合并以及回调线程
+     */
+    void publishProgress(long downloadedSize) {
+        IDownloadListener transferListener = mTransferListener;
+        if (transferListener != null) {
+            long totalSize = mTotalSize;
+            transferListener.onProgress(computeProgress(downloadedSize, totalSize), downloadedSize, totalSize);
+        }
+    }
+
+    /**
+     * 收到分发后的进度,附加到其他下载上的任务以此更新自己的字节计数
+     */
+    void dispatchProgress(int progress, long downloadedSize, long totalSize) {
+        if (mTransferListener == null) {
+            mDownloadedSize.set(downloadedSize);
+            mTotalSize = totalSize;
+        }
+
+        if (mDownloadListener != null) {
+            mDownloadListener.onProgress(progress, downloadedSize, totalSize);
+        }
+    }
+
+    private static int computeProgress(long downloadedSize, long totalSize) {
+        int progress = 0;
+        if (totalSize > 0 && downloadedSize >= 0) {
+            progress = (int) (1.0F * downloadedSize / totalSize * 100);
+        }
+        return progress;
+    }
+}
@@ -0,0 +1,82 @@
+package com.chw.filedownloader;
+
+import androidx.annotation.NonNull;
+
+import com.chw.filedownloader.utils.StreamingDigest;
+
+import java.util.Locale;
+
+/**
+ * @author chaihongwei 2026-10-18 23:58
+ * 下载文件期望的摘要和大小,与下载结果不一致时下载失败,不会提交到缓存
+ * 摘要在写入文件的同时计算,不需要下载完成后再读一遍文件,校验通过的摘要保存在缓存的新鲜度信息中,
+ * 之后命中缓存时直接比较,不需要重新计算
+ */
+public final class ExpectedContent {
+    private final String mAlgorithm;
+    private final String mDigest;
+    private final long mSize;
+
+    /**
+     * @param algorithm 摘要算法,{@link StreamingDigest#MD5},{@link StreamingDigest#SHA_256}
+     *                  或{@link StreamingDigest#CRC32C},只校验大小时为null
+     * @param digest    十六进制的摘要,不区分大小写,只校验大小时为null
+     * @param size      文件大小,小于0表示不校验大小
+     */
+    public ExpectedContent(String algorithm, String digest, long size) {
+        if ((algorithm == null) != (digest == null)) {
+            throw new IllegalArgumentException("algorithm and digest must be both set or both null");
+        }
+        if (algorithm != null && !StreamingDigest.isSupported(algorithm)) {
+            throw new IllegalArgumentException("unsupported digest: " + algorithm);
+        }
+        this.mAlgorithm = algorithm;
+        this.mDigest = digest != null ? digest.toLowerCase(Locale.US) : null;
+        this.mSize = size;
+    }
+
+    public static ExpectedContent md5(@NonNull String digest, long size) {
+        return new ExpectedContent(StreamingDigest.MD5, digest, size);
+    }
+
+    public static ExpectedContent sha256(@NonNull String digest, long size) {
+        return new ExpectedContent(StreamingDigest.SHA_256, digest, size);
+    }
+
+    public static ExpectedContent crc32c(@NonNull String digest, long size) {
+        return new ExpectedContent(StreamingDigest.CRC32C, digest, size);
+    }
+
+    /**
+     * 摘要算法,只校验大小时为null
+     */
+    public String getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    /**
+     * 小写十六进制的摘要,只校验大小时为null
+     */
+    public String getDigest() {
+        return mDigest;
+    }
+
+    /**
+     * 文件大小,小于0表示不校验大小
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * 大小是否一致,不校验大小时总是一致
+     */
+    boolean matchesSize(long size) {
+        return mSize < 0 || mSize == size;
+    }
+
+    @Override
+    public String toString() {
+        return "ExpectedContent{" + mAlgorithm + "=" + mDigest + ", size=" + mSize + "}";
+    }
+}
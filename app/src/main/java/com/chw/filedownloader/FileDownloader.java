@@ -3,7 +3,6 @@ package com.chw.filedownloader;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -11,21 +10,36 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.chw.filedownloader.config.FileDownloaderConfig;
+import com.chw.filedownloader.constant.ByteConstants;
+import com.chw.filedownloader.transport.TransportRequest;
+import com.chw.filedownloader.transport.TransportResponse;
+import com.chw.filedownloader.utils.BufferPool;
 import com.chw.filedownloader.utils.DiskLruCache;
 import com.chw.filedownloader.utils.EncryptUtils;
+import com.chw.filedownloader.utils.EvictionPolicy;
+import com.chw.filedownloader.utils.GreedyDualSizeEvictionPolicy;
 import com.chw.filedownloader.utils.IOUtils;
+import com.chw.filedownloader.utils.LruEvictionPolicy;
+import com.chw.filedownloader.utils.RateLimiter;
+import com.chw.filedownloader.utils.StreamingDigest;
+import com.chw.filedownloader.utils.TinyLfuEvictionPolicy;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  * @author chaihongwei 2020-07-09 13:47
@@ -42,50 +56,158 @@ public class FileDownloader {
      * 已经下载完成的缓存文件后缀
      */
     private static final String DOWNLOAD_COMPLETED_FILE_SUFFIX = "_done";
-
-    private FileDownloaderConfig mConfig;
-    private DiskLruCache mDiskLruCache;
+    /**
+     * 分段下载记录文件后缀
+     */
+    private static final String DOWNLOAD_RECORD_FILE_SUFFIX = "_downloading.rec";
+    /**
+     * 每个缓存条目包含两个值,下载的文件和它的新鲜度信息
+     * 旧版本的条目只有下载的文件,打开缓存时保留下来,新鲜度信息为空
+     */
+    private static final int CACHE_VALUE_COUNT = 2;
+    /**
+     * {@link #openCachedFile(String)}返回的Snapshot中下载的文件的索引
+     */
+    public static final int CACHE_INDEX_FILE = 0;
+    private static final int CACHE_INDEX_METADATA = 1;
+    /**
+     * 开启内容去重时内容key的长度,取SHA-256的前16字节,与{@link EncryptUtils#hashFileContent(File)}一致
+     */
+    private static final int CONTENT_KEY_LENGTH = 32;
+    /**
+     * 网络传输缓冲区大小
+     */
+    private static final int TRANSFER_BUFFER_SIZE = 64 * ByteConstants.KB;
 
     /**
-     * 控制下载是否应停止
+     * 每个缓存目录对应一个FileDownloader实例,key为缓存目录的绝对路径
+     * 同一个缓存目录只打开一次DiskLruCache,避免每次下载都重新读取和回放日志文件
      */
-    private IDownloadListener mDownloadListener;
+    private static final Map<String, FileDownloader> sInstances = new HashMap<>();
+
+    private final FileDownloaderConfig mConfig;
+    private volatile DiskLruCache mDiskLruCache;
     /**
-     * 已经下载完的字节大小,用于计算下载进度
+     * 正在进行中的下载,key为文件缓存对应的key
      */
-    private long mDownloadedSize;
+    private final Map<String, InFlightDownload> mInFlightDownloads = new HashMap<>();
+    private final DownloadScheduler mScheduler;
+
     /**
-     * 文件总大小,用于计算下载进度
+     * 网络传输使用的缓冲区,所有下载任务和分段共用,单个缓冲区64KB
      */
-    private long mTotalSize;
+    private static final BufferPool sBufferPool = new BufferPool(TRANSFER_BUFFER_SIZE, 16);
 
     private static Handler sMainHandler = new Handler(Looper.getMainLooper());
+    /**
+     * 默认的进度回调线程,即主线程
+     */
+    private static final Executor sMainExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            sMainHandler.post(command);
+        }
+    };
 
-    public static FileDownloader getInstance(@NonNull Context appContext,
-                                             @Nullable IDownloadListener downloadListener) {
+    /**
+     * 获取默认缓存目录对应的FileDownloader
+     */
+    public static FileDownloader getInstance(@NonNull Context appContext) {
         FileDownloaderConfig config = new FileDownloaderConfig.Builder(appContext).build();
-        return getInstance(config, downloadListener);
+        return getInstance(config);
     }
 
-    public static FileDownloader getInstance(@NonNull FileDownloaderConfig config,
-                                             @Nullable IDownloadListener downloadListener) {
-        return new FileDownloader(config, downloadListener);
+    /**
+     * 获取config中缓存目录对应的FileDownloader,同一个缓存目录在进程内只会创建一个实例,
+     * 后续调用直接复用,此时以第一次创建时的config为准,传入不同的设置时会输出日志
+     * 限速等每次下载可以不同的设置通过{@link DownloadTask}单独设置
+     */
+    public static FileDownloader getInstance(@NonNull FileDownloaderConfig config) {
+        String cacheDirPath = config.getCacheDir().getAbsolutePath();
+        synchronized (sInstances) {
+            FileDownloader fileDownloader = sInstances.get(cacheDirPath);
+            if (fileDownloader == null) {
+                fileDownloader = new FileDownloader(config);
+                sInstances.put(cacheDirPath, fileDownloader);
+            } else if (fileDownloader.mConfig != config) {
+                List<String> differences = fileDownloader.mConfig.findDifferences(config);
+                if (!differences.isEmpty()) {
+                    Log.e(TAG, "FileDownloader already created for " + cacheDirPath
+                            + ", ignored settings: " + differences);
+                }
+            }
+            return fileDownloader;
+        }
     }
 
-    private FileDownloader(@NonNull FileDownloaderConfig config,
-                           @Nullable IDownloadListener downloadListener) {
+    private FileDownloader(@NonNull FileDownloaderConfig config) {
         this.mConfig = config;
-        this.mDownloadListener = downloadListener;
+        this.mDiskLruCache = openDiskLruCache();
+        this.mScheduler = new DownloadScheduler(this, config.getMaxConcurrentDownloads(),
+                config.getMaxDownloadsPerHost());
+    }
+
+    FileDownloaderConfig getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * 获取下载调度器,通过调度器排队下载可以控制优先级和并发数
+     */
+    public DownloadScheduler getScheduler() {
+        return mScheduler;
+    }
 
+    /**
+     * 创建DiskLruCache实例，初始化缓存数据
+     *
+     * @return 打开失败时返回null
+     */
+    private DiskLruCache openDiskLruCache() {
         try {
-            // 创建DiskLruCache实例，初始化缓存数据
-            mDiskLruCache = DiskLruCache.open(config.getCacheDir(), config.getCacheVersion(),
-                    1, config.getMaxCacheSize());
+            return DiskLruCache.open(mConfig.getCacheDir(), mConfig.getCacheVersion(),
+                    CACHE_VALUE_COUNT, mConfig.getMaxCacheSize(), newEvictionPolicy(),
+                    mConfig.getCacheLayout() == FileDownloaderConfig.CACHE_LAYOUT_SHARDED);
         } catch (Exception ex) {
             ex.printStackTrace();
+            return null;
         }
     }
 
+    /**
+     * 按配置创建缓存淘汰策略,每次打开缓存都使用新的策略对象
+     */
+    private EvictionPolicy newEvictionPolicy() {
+        switch (mConfig.getEvictionPolicy()) {
+            case FileDownloaderConfig.EVICTION_TINY_LFU:
+                return new TinyLfuEvictionPolicy();
+            case FileDownloaderConfig.EVICTION_GREEDY_DUAL_SIZE:
+                return new GreedyDualSizeEvictionPolicy();
+            default:
+                return new LruEvictionPolicy();
+        }
+    }
+
+    /**
+     * 获取可用的DiskLruCache,之前打开失败或者已经被关闭时重新打开
+     */
+    private DiskLruCache getDiskLruCache() throws IOException {
+        DiskLruCache diskLruCache = mDiskLruCache;
+        if (diskLruCache == null || diskLruCache.isClosed()) {
+            synchronized (this) {
+                diskLruCache = mDiskLruCache;
+                if (diskLruCache == null || diskLruCache.isClosed()) {
+                    diskLruCache = openDiskLruCache();
+                    if (diskLruCache == null) {
+                        throw new IOException("open DiskLruCache failed: " + mConfig.getCacheDir());
+                    }
+                    mDiskLruCache = diskLruCache;
+                }
+            }
+        }
+        return diskLruCache;
+    }
+
     /**
      * 下载文件
      *
@@ -93,21 +215,208 @@ public class FileDownloader {
      * @return 返回下载完成后的缓存文件路径, 若没有对应的缓存文件, 或者下载过程中失败了, 则返回""
      */
     public String download(String fileUrl) {
+        return download(fileUrl, null);
+    }
+
+    /**
+     * 下载文件
+     *
+     * @param fileUrl          网络文件地址
+     * @param downloadListener 本次下载的取消控制和进度回调
+     * @return 返回下载完成后的缓存文件路径, 若没有对应的缓存文件, 或者下载过程中失败了, 则返回""
+     */
+    public String download(String fileUrl, @Nullable IDownloadListener downloadListener) {
+        return download(fileUrl, downloadListener, null);
+    }
+
+    /**
+     * 下载文件,并校验文件的摘要和大小,不一致的文件不会提交到缓存
+     * 已经缓存的文件与期望不一致时重新下载
+     *
+     * @param fileUrl          网络文件地址
+     * @param downloadListener 本次下载的取消控制和进度回调
+     * @param expectedContent  期望的摘要和大小,为null时不校验
+     * @return 返回下载完成后的缓存文件路径, 若没有对应的缓存文件, 或者下载过程中失败了, 或者校验失败, 则返回""
+     */
+    public String download(String fileUrl, @Nullable IDownloadListener downloadListener,
+                           @Nullable ExpectedContent expectedContent) {
         if (TextUtils.isEmpty(fileUrl)) {
             return "";
         }
 
-        //文件缓存对应的key
+        return execute(newTask(fileUrl, downloadListener, expectedContent));
+    }
+
+    /**
+     * 打开已经缓存的文件,不会发起下载,也不检查是否过期
+     * 需要随机读取大文件时(压缩包,模型文件等),通过{@link DiskLruCache.Snapshot#getChannel(int)}
+     * 或者{@link DiskLruCache.Snapshot#map(int)}直接读取,不需要再通过流拷贝一遍,
+     * 关闭Snapshot之前缓存文件不会被淘汰或者替换,用完后必须关闭
+     *
+     * @param fileUrl 网络文件地址
+     * @return 没有缓存时返回null, 缓存文件的索引为{@link #CACHE_INDEX_FILE}
+     */
+    @Nullable
+    public DiskLruCache.Snapshot openCachedFile(String fileUrl) throws IOException {
+        if (TextUtils.isEmpty(fileUrl)) {
+            return null;
+        }
+
+        DiskLruCache diskLruCache = getDiskLruCache();
+        DiskLruCache.Snapshot snapshot = diskLruCache.get(EncryptUtils.hashKeyForDisk(fileUrl));
+        if (snapshot == null) {
+            return null;
+        }
+        CacheMetadata metadata = CacheMetadata.parse(snapshot.getString(CACHE_INDEX_METADATA));
+        if (metadata == null || !metadata.isReference()) {
+            return snapshot;
+        }
+
+        //开启内容去重时,url对应的条目只是引用,打开保存文件内容的条目
+        snapshot.close();
+        return diskLruCache.get(metadata.getContentKey());
+    }
+
+    /**
+     * 获取已经缓存的文件校验过的摘要,只读取很小的新鲜度信息文件,不会读取缓存文件本身
+     *
+     * @param fileUrl   网络文件地址
+     * @param algorithm 摘要算法,{@link StreamingDigest#MD5},{@link StreamingDigest#SHA_256}或{@link StreamingDigest#CRC32C}
+     * @return 没有缓存, 或者下载时没有校验过这种摘要时返回null
+     */
+    @Nullable
+    public String getVerifiedDigest(String fileUrl, String algorithm) throws IOException {
+        if (TextUtils.isEmpty(fileUrl)) {
+            return null;
+        }
+
+        DiskLruCache diskLruCache = getDiskLruCache();
         String fileCacheKey = EncryptUtils.hashKeyForDisk(fileUrl);
+        if (!diskLruCache.contains(fileCacheKey)) {
+            return null;
+        }
+        CacheMetadata metadata = readCacheMetadata(diskLruCache, fileCacheKey);
+        return metadata != null ? metadata.getDigest(algorithm) : null;
+    }
 
-        DiskLruCache.Snapshot snapShot;
+    /**
+     * 创建下载任务,任务中保存了自己的下载进度,耗时和状态,可以通过{@link DownloadTask#cancel()}取消
+     *
+     * @param fileUrl          网络文件地址
+     * @param downloadListener 本次下载的取消控制和进度回调
+     */
+    public DownloadTask newTask(@NonNull String fileUrl, @Nullable IDownloadListener downloadListener) {
+        return newTask(fileUrl, downloadListener, null);
+    }
+
+    /**
+     * 创建下载任务,下载完成后校验文件的摘要和大小
+     * 任务的限速取自配置,执行前可以通过{@link DownloadTask#setMaxBytesPerSecond}
+     * 和{@link DownloadTask#setGlobalRateLimiter}修改
+     *
+     * @param fileUrl          网络文件地址
+     * @param downloadListener 本次下载的取消控制和进度回调
+     * @param expectedContent  期望的摘要和大小,为null时不校验
+     */
+    public DownloadTask newTask(@NonNull String fileUrl, @Nullable IDownloadListener downloadListener,
+                                @Nullable ExpectedContent expectedContent) {
+        return new DownloadTask(fileUrl, EncryptUtils.hashKeyForDisk(fileUrl), downloadListener, expectedContent)
+                .setMaxBytesPerSecond(mConfig.getMaxBytesPerSecond())
+                .setGlobalRateLimiter(mConfig.getGlobalRateLimiter());
+    }
+
+    /**
+     * 在当前线程中执行下载任务,同一个FileDownloader可以在多个线程中同时执行多个任务
+     *
+     * @return 返回下载完成后的缓存文件路径, 若没有对应的缓存文件, 或者下载过程中失败了, 则返回""
+     */
+    public String execute(@NonNull DownloadTask task) {
+        task.onStart();
+
+        //文件缓存对应的key
+        String fileCacheKey = task.getFileCacheKey();
+
+        //同一个url同时只下载一次,后来的任务附加到正在进行中的下载上,等待相同的结果
+        InFlightDownload inFlightDownload;
+        boolean isOwner;
+        synchronized (mInFlightDownloads) {
+            inFlightDownload = mInFlightDownloads.get(fileCacheKey);
+            isOwner = inFlightDownload == null;
+            if (isOwner) {
+                inFlightDownload = new InFlightDownload();
+                mInFlightDownloads.put(fileCacheKey, inFlightDownload);
+            }
+            inFlightDownload.attach(task);
+        }
+
+        if (!isOwner) {
+            String result = inFlightDownload.await(task);
+            //附加到其他任务的下载上时,按自己期望的摘要和大小再检查一次结果
+            if (!TextUtils.isEmpty(result) && !verifyResult(task, result)) {
+                result = "";
+            }
+            task.setTransferFailed(TextUtils.isEmpty(result) && !task.isCanceled());
+            task.onFinish(result);
+            return result;
+        }
+
+        //合并进度,避免每读一块数据就向进度回调线程发送一次消息
+        Executor progressExecutor = mConfig.getProgressExecutor();
+        ProgressDispatcher progressDispatcher = new ProgressDispatcher(inFlightDownload,
+                progressExecutor != null ? progressExecutor : sMainExecutor,
+                mConfig.getProgressIntervalMillis(), mConfig.getProgressPercentDelta());
+        task.beginTransfer(progressDispatcher, new RateLimiter(task.getMaxBytesPerSecond()));
+
+        String result = "";
         try {
-            //查找key对应的缓存
-            snapShot = mDiskLruCache.get(fileCacheKey);
+            result = download(task);
+            if (!TextUtils.isEmpty(result)) {
+                progressDispatcher.finish();
+            }
+            //所有任务都取消时下载停止,不算失败
+            task.setTransferFailed(TextUtils.isEmpty(result) && !task.isTransferCanceled());
+        } finally {
+            synchronized (mInFlightDownloads) {
+                mInFlightDownloads.remove(fileCacheKey);
+            }
+            inFlightDownload.complete(result);
+        }
+
+        //真正下载的任务如果已经取消,即使下载因为其他任务继续完成了,也按取消处理
+        if (task.isCanceled()) {
+            result = "";
+        }
+        task.onFinish(result);
+        return result;
+    }
+
+    /**
+     * 查找缓存,没有缓存时从网络下载文件
+     *
+     * @param task 真正执行下载的任务,进度回调已经合并了所有等待该url的任务
+     */
+    private String download(DownloadTask task) {
+        String fileCacheKey = task.getFileCacheKey();
 
-            //有对应的缓存文件
-            if (snapShot != null) {
-                return getCacheFilePath(fileCacheKey);
+        try {
+            //查找key对应的缓存,只查内存中的索引,命中时才读取很小的新鲜度信息文件
+            DiskLruCache diskLruCache = getDiskLruCache();
+            if (diskLruCache.contains(fileCacheKey)) {
+                CacheMetadata metadata = readCacheMetadata(diskLruCache, fileCacheKey);
+
+                //有对应的缓存文件,还在有效期内或者向服务器确认没有变化时直接使用
+                //只是引用而引用的文件内容已经被淘汰时,只能重新下载
+                if (metadata != null && isContentAvailable(diskLruCache, metadata)
+                        && (metadata.isFresh(System.currentTimeMillis(), mConfig.getCacheTtlMillis())
+                        || revalidate(task, metadata))) {
+                    String cacheFilePath = getCacheFilePath(fileCacheKey, metadata);
+                    //刚刚被淘汰,或者与期望的摘要和大小不一致时重新下载
+                    if (!TextUtils.isEmpty(cacheFilePath)
+                            && verifyCachedFile(task, metadata, new File(cacheFilePath))) {
+                        return cacheFilePath;
+                    }
+                }
+                //服务器上的文件已经变化,重新下载,提交时覆盖旧的缓存
             }
 
             //整个文件都下载完后对应的存储路径
@@ -116,15 +425,19 @@ public class FileDownloader {
 
             //如果此文件存在,说明上次下载完成后,由于某种情况还没有同步到缓存目录中
             if (downloadCompleteFile.exists()) {
-                //将下载完成的文件拷贝到缓存目录中
-                if (copyFileToCache(downloadCompleteFile, fileCacheKey)) {
-                    //拷贝成功后,删除文件
+                CacheMetadata metadata = verifyDownload(task, downloadCompleteFile, CacheMetadata.empty());
+                if (metadata == null) {
+                    //与这次期望的摘要和大小不一致,重新下载
                     downloadCompleteFile.delete();
-
-                    return getCacheFilePath(fileCacheKey);
                 } else {
-                    //拷贝失败,直接返回下载完成的完整文件路径,一般不会走到这里
-                    return downloadCompleteFilePath;
+                    //将下载完成的文件提交到缓存中
+                    String cacheFilePath = commitFileToCache(downloadCompleteFile, fileCacheKey, metadata);
+                    if (cacheFilePath != null) {
+                        return cacheFilePath;
+                    } else {
+                        //提交失败,直接返回下载完成的完整文件路径,一般不会走到这里
+                        return downloadCompleteFilePath;
+                    }
                 }
             }
 
@@ -132,26 +445,31 @@ public class FileDownloader {
             String downloadingFilePath = fileCacheKey + DOWNLOADING_FILE_SUFFIX;
             File downloadingFile = new File(mConfig.getCacheDir(), downloadingFilePath);
 
-            long partialDownloadedSize = 0;
-            //如果文件存在,说明已经有部分缓存文件
-            if (downloadingFile.exists()) {
-                partialDownloadedSize = downloadingFile.length();
-            } else {
+            if (!downloadingFile.exists()) {
                 downloadingFile.createNewFile();
             }
 
+            //断点记录文件,下载中的文件只有记录中的部分是可信的
+            File recordFile = new File(mConfig.getCacheDir(), fileCacheKey + DOWNLOAD_RECORD_FILE_SUFFIX);
+
             //走到这里,说明本地没有完整的缓存文件,需要从网络下载文件
-            if (downloadFromNet(fileUrl, downloadingFile, partialDownloadedSize)) {
+            if (downloadFromNet(task, downloadingFile, recordFile)) {
+                //提交到缓存之前校验,不完整或者与期望不一致的文件直接删除,下次从头下载
+                CacheMetadata metadata = verifyDownload(task, downloadingFile, task.getCacheMetadata());
+                if (metadata == null) {
+                    downloadingFile.delete();
+                    recordFile.delete();
+                    return "";
+                }
+
                 //文件下载成功后,进行文件重命名
                 if (IOUtils.renameFileName(downloadingFile, downloadCompleteFile)) {
-                    //将下载完成的文件拷贝到缓存目录中
-                    if (copyFileToCache(downloadCompleteFile, fileCacheKey)) {
-                        //拷贝成功后,删除文件
-                        downloadCompleteFile.delete();
-
-                        return getCacheFilePath(fileCacheKey);
+                    //将下载完成的文件提交到缓存中
+                    String cacheFilePath = commitFileToCache(downloadCompleteFile, fileCacheKey, metadata);
+                    if (cacheFilePath != null) {
+                        return cacheFilePath;
                     } else {
-                        //拷贝失败,直接返回下载完成的完整文件路径,一般不会走到这里
+                        //提交失败,直接返回下载完成的完整文件路径,一般不会走到这里
                         return downloadCompleteFilePath;
                     }
                 }
@@ -167,192 +485,533 @@ public class FileDownloader {
     /**
      * 通过网络下载文件
      *
-     * @param fileUrl    文件请求路径
+     * @param task       真正执行下载的任务
      * @param saveFile   保存到的文件
-     * @param rangeStart 分块下载文件的开始位置
+     * @param recordFile 断点记录文件
      */
-    private boolean downloadFromNet(String fileUrl, File saveFile, long rangeStart) {
+    private boolean downloadFromNet(DownloadTask task, File saveFile, File recordFile) throws IOException {
+        //有断点记录,按记录继续下载每一段中缺少的部分,单个连接下载的文件也是一段
+        DownloadRecord record = DownloadRecord.load(recordFile);
+        if (record != null) {
+            SegmentDownloader segmentDownloader = new SegmentDownloader(this, task, record);
+            boolean success = segmentDownloader.download(saveFile);
+            if (success || !segmentDownloader.isRemoteChanged()) {
+                return success;
+            }
+            //服务器上的文件已经变化,已经下载的部分作废
+            Log.e(TAG, "remote file changed, restart:" + task.getFileUrl());
+        }
+
+        //没有记录,记录损坏,或者服务器上的文件已经变化,无法知道文件中哪些数据可用,只能从头开始下载
+        recordFile.delete();
+
+        //配置了分段下载,先探测文件大小和服务器是否支持分块下载
+        if (mConfig.getSegmentCount() > 1) {
+            record = SegmentDownloader.probe(mConfig.getTransport(), task, recordFile, mConfig.getSegmentCount());
+            //先保存记录再写文件,保证分段下载的文件一定有对应的记录
+            if (record != null && record.save()) {
+                return new SegmentDownloader(this, task, record).download(saveFile);
+            }
+        }
+
+        return downloadWithSingleConnection(task, saveFile, recordFile);
+    }
+
+    /**
+     * 使用单个连接从头下载文件,服务器支持分块下载时同时创建断点记录,下次可以从断点继续
+     *
+     * @param task       真正执行下载的任务
+     * @param saveFile   保存到的文件
+     * @param recordFile 断点记录文件
+     */
+    private boolean downloadWithSingleConnection(DownloadTask task, File saveFile, File recordFile) {
         boolean flag = false;
 
-        HttpURLConnection urlConnection = null;
-        BufferedInputStream in = null;
+        TransportResponse response = null;
         RandomAccessFile raf = null;
+        WriteCheckpointer checkpointer = null;
         try {
-            final URL url = new URL(fileUrl);
-            urlConnection = (HttpURLConnection) url.openConnection();
-            //设置分块下载文件,从rangeStart到最后
+            //请求整个文件,通过响应码判断服务器是否支持分块下载
             // http分块header的个数 "Range":"bytes=start-[end]",end可选,但一定要有start后面的'-'
-            urlConnection.setRequestProperty("Range", "bytes=" + rangeStart + "-");
+            response = mConfig.getTransport().execute(new TransportRequest.Builder(task.getFileUrl())
+                    .setHeader("Range", "bytes=0-")
+                    .build());
 
-            //服务器支持分块下载
-            if (urlConnection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
-                raf = new RandomAccessFile(saveFile, "rwd");
-                raf.seek(rangeStart);
+            //提交到缓存时一起保存的新鲜度信息
+            task.setCacheMetadata(CacheMetadata.fromResponse(response));
 
+            DownloadRecord record = null;
+            //服务器支持分块下载
+            if (response.getCode() == HttpURLConnection.HTTP_PARTIAL) {
                 //当前返回的分块大小
-                String contentRange = urlConnection.getHeaderField("Content-Range");
+                String contentRange = response.getHeader("Content-Range");
                 Log.e(TAG, "contentRange:" + contentRange);
 
-                mDownloadedSize = rangeStart;
                 //文件总大小
-                mTotalSize = Long.parseLong(contentRange.split("/")[1]);
-
-                in = new BufferedInputStream(urlConnection.getInputStream(), 8 * 1024);
-                byte[] buffer = new byte[8 * 1024];
-                int len;
-                while ((len = in.read(buffer)) != -1) {
-                    mDownloadedSize += len;
-
-                    //如果用户已经取消,则停止文件写入
-                    if (mDownloadListener != null) {
-                        if (mDownloadListener.isCanceled()) {
-                            return false;
-                        } else {
-                            publishProgress(mDownloadedSize, mTotalSize);
-                        }
+                long totalSize = SegmentDownloader.parseTotalSize(contentRange);
+                task.resetProgress(0, totalSize);
+
+                //先保存记录再写文件,之后按落盘策略更新记录,记下ETag和Last-Modified用于续传时校验
+                if (totalSize > 0) {
+                    record = DownloadRecord.create(recordFile, totalSize, response.getHeader("ETag"),
+                            response.getHeader("Last-Modified"), 1);
+                    if (!record.save()) {
+                        record = null;
                     }
-
-                    SystemClock.sleep(20);
-
-                    //写入文件
-                    raf.write(buffer, 0, len);
                 }
-
-                flag = true;
-            } else if (urlConnection.getResponseCode() == HttpURLConnection.HTTP_OK) {
-                //服务器不支持分块下载
-                //先删除文件,再重新创建一个新文件,不确定使用RandomAccessFile.seek(0)覆盖能否可行?如果可行就能与上面的合并了
-                saveFile.delete();
-                saveFile.createNewFile();
-
-                mDownloadedSize = 0;
-                //文件总大小
-                mTotalSize = urlConnection.getContentLength();
-
-                flag = copyStream(true, urlConnection.getInputStream(), new FileOutputStream(saveFile));
+            } else if (response.getCode() == HttpURLConnection.HTTP_OK) {
+                //服务器不支持分块下载,无法断点续传,不需要记录
+                task.resetProgress(0, response.getContentLength());
             } else {
-                flag = false;
+                return false;
             }
 
+            //不使用"rwd",由落盘策略决定何时落盘,清空之前不可信的数据,从头写入
+            raf = new RandomAccessFile(saveFile, "rw");
+            raf.setLength(0);
+            checkpointer = new WriteCheckpointer(mConfig, raf.getChannel(), record);
+
+            //从头按顺序写入,可以在写入的同时计算摘要
+            String[] algorithms = getDigestAlgorithms(task);
+            StreamingDigest digest = algorithms.length > 0 ? new StreamingDigest(algorithms) : null;
+
+            flag = transfer(Channels.newChannel(response.getBody()), raf.getChannel(), record, checkpointer,
+                    digest, task);
+            if (flag) {
+                //全部落盘后才删除记录,之后文件会被提交到缓存中
+                checkpointer.sync();
+                recordFile.delete();
+                task.setContentDigest(digest);
+            } else {
+                checkpointer.checkpointQuietly();
+            }
         } catch (final Exception e) {
             e.printStackTrace();
+
+            flag = false;
+            if (checkpointer != null) {
+                checkpointer.checkpointQuietly();
+            }
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            //关闭响应后连接放回连接池,下一个请求可以直接复用,被取消时直接断开连接,不读取剩余的数据
+            if (response != null && task.isTransferCanceled()) {
+                response.abort();
+            } else {
+                IOUtils.closeQuietly(response);
             }
-
             IOUtils.closeQuietly(raf);
-            IOUtils.closeQuietly(in);
         }
         return flag;
     }
 
+    /**
+     * 从头将网络数据写入文件,使用缓冲池中的直接内存缓冲区,每攒满一个缓冲区写一次文件
+     *
+     * @param record       断点记录,服务器不支持分块下载时为null
+     * @param checkpointer 按落盘策略保存断点
+     * @param digest       写入的同时计算摘要,不需要时为null
+     * @param task         真正执行下载的任务,用于进度提示,限速和取消控制
+     * @return 读到末尾返回true, 被取消返回false
+     */
+    private boolean transfer(ReadableByteChannel in, FileChannel out, DownloadRecord record,
+                             WriteCheckpointer checkpointer, StreamingDigest digest, DownloadTask task)
+            throws IOException {
+        ByteBuffer buffer = sBufferPool.acquire();
+        try {
+            long position = 0;
+            int len;
+            while ((len = IOUtils.fill(in, buffer)) != -1) {
+                long downloadedSize = task.addDownloadedSize(len);
+
+                //如果用户已经取消,则停止文件写入
+                if (task.isTransferCanceled()) {
+                    return false;
+                } else {
+                    task.publishProgress(downloadedSize);
+                }
+
+                acquireBandwidth(task, len);
+
+                //写入文件
+                buffer.flip();
+                if (digest != null) {
+                    digest.update(buffer);
+                }
+                position = IOUtils.writeFully(out, buffer, position);
+                buffer.clear();
+
+                //数据写入后再更新记录,保证记录中的进度不会超过实际写入的数据
+                if (record != null) {
+                    record.addFinished(0, len);
+                }
+                checkpointer.onWritten(len);
+            }
+            return true;
+        } finally {
+            sBufferPool.release(buffer);
+        }
+    }
+
     /**
      * 获取缓存文件完整路径
+     *
+     * @param metadata 条目的新鲜度信息,条目只是引用时返回引用的文件
+     * @return 文件已经不在缓存中时返回""
      */
-    private String getCacheFilePath(String fileCacheKey) {
-        File cacheFile = new File(mConfig.getCacheDir(), fileCacheKey);
-        return cacheFile.getAbsolutePath();
+    private String getCacheFilePath(String fileCacheKey, CacheMetadata metadata) throws IOException {
+        String contentKey = metadata.isReference() ? metadata.getContentKey() : fileCacheKey;
+        DiskLruCache diskLruCache = getDiskLruCache();
+        File cacheFile = diskLruCache.peekFile(contentKey, CACHE_INDEX_FILE);
+        //已经被淘汰或者删除,不能返回不存在的文件
+        return cacheFile != null ? cacheFile.getAbsolutePath() : "";
     }
 
     /**
-     * 将下载好的文件拷贝到缓存目录
+     * 条目的文件内容是否还在缓存中,条目只是引用时,引用的条目可能已经被单独淘汰
+     */
+    private static boolean isContentAvailable(DiskLruCache diskLruCache, CacheMetadata metadata) {
+        return !metadata.isReference() || diskLruCache.contains(metadata.getContentKey());
+    }
+
+    /**
+     * 读取缓存条目的新鲜度信息,直接读取文件,不需要打开缓存文件本身
      *
-     * @return 返回拷贝是否成功, 成功返回true, 失败返回false, 比如同一个fileCacheKey同时被编辑就会出错返回false
+     * @return 条目已经被删除或者内容损坏时返回null
      */
-    private boolean copyFileToCache(File sourceFile, String fileCacheKey) throws Exception {
-        boolean flag = false;
+    private CacheMetadata readCacheMetadata(DiskLruCache diskLruCache, String fileCacheKey) {
+        File metadataFile = diskLruCache.peekFile(fileCacheKey, CACHE_INDEX_METADATA);
+        if (metadataFile == null) {
+            return null;
+        }
 
-        DiskLruCache.Editor editor = mDiskLruCache.edit(fileCacheKey);
-        if (editor != null) {
-            OutputStream outputStream = editor.newOutputStream(0);
-            if (copyStream(false, new FileInputStream(sourceFile), outputStream)) {
-                editor.commit();
+        try {
+            return CacheMetadata.parse(DiskLruCache.readFully(
+                    new InputStreamReader(new FileInputStream(metadataFile), "UTF-8")));
+        } catch (IOException ex) {
+            return null;
+        }
+    }
 
-                flag = true;
+    /**
+     * 将下载好的文件提交到缓存中
+     * 下载文件和缓存文件在同一个目录下,直接重命名为缓存文件,不需要再拷贝一遍文件内容,
+     * 只有重命名失败时才退回到拷贝文件,提交成功后源文件不再存在
+     * 开启内容去重时,文件保存到内容摘要对应的条目中,fileCacheKey对应的条目只保存引用
+     * 保存文件内容的条目在取得路径之前一直被固定,淘汰策略(比如TinyLFU的准入,GDS优先淘汰大文件)
+     * 不会在返回路径之前就把刚提交的文件删除
+     *
+     * @param metadata 缓存新鲜度信息,为null时当作没有任何响应头
+     * @return 返回缓存文件的完整路径, 失败返回null, 比如同一个fileCacheKey同时被编辑就会出错返回null
+     */
+    private String commitFileToCache(File sourceFile, String fileCacheKey, CacheMetadata metadata)
+            throws Exception {
+        if (metadata == null) {
+            metadata = CacheMetadata.empty();
+        }
+
+        DiskLruCache diskLruCache = getDiskLruCache();
+        if (mConfig.isContentDedupEnabled()) {
+            //下载时已经算好了SHA-256就不需要再读一遍文件
+            String sha256 = metadata.getDigest(StreamingDigest.SHA_256);
+            String contentKey = sha256 != null ? sha256.substring(0, CONTENT_KEY_LENGTH)
+                    : EncryptUtils.hashFileContent(sourceFile);
+            DiskLruCache.Snapshot content = commitContentToCache(diskLruCache, sourceFile, contentKey);
+            if (content != null) {
+                try {
+                    metadata = metadata.withContentKey(contentKey);
+                    //引用条目的文件为空,不占用缓存大小
+                    DiskLruCache.Editor editor = diskLruCache.edit(fileCacheKey);
+                    if (editor != null) {
+                        editor.set(CACHE_INDEX_FILE, "");
+                        editor.set(CACHE_INDEX_METADATA, metadata.serialize());
+                        editor.commit();
+                    }
+                    //引用没有保存成功时,文件内容已经在缓存中,这次下载的结果仍然可用
+                    return getCacheFilePath(fileCacheKey, metadata);
+                } finally {
+                    content.close();
+                }
+            }
+            //相同的内容正在被其他下载提交,这次不去重
+        }
+
+        String result = null;
+        DiskLruCache.Editor editor = diskLruCache.edit(fileCacheKey);
+        if (editor != null) {
+            if (editor.adoptFile(CACHE_INDEX_FILE, sourceFile)
+                    || copyFile(sourceFile, editor.newOutputStream(CACHE_INDEX_FILE))) {
+                editor.set(CACHE_INDEX_METADATA, metadata.serialize());
+                DiskLruCache.Snapshot snapshot = editor.commitAndPin();
+                //拷贝成功后,删除文件,重命名时源文件已经不存在了
+                sourceFile.delete();
+
+                if (snapshot != null) {
+                    try {
+                        result = getCacheFilePath(fileCacheKey, metadata);
+                    } finally {
+                        snapshot.close();
+                    }
+                }
             } else {
                 editor.abort();
             }
         }
 
-        //刷新缓存日志数据
-        mDiskLruCache.flush();
+        return result;
+    }
 
-        return flag;
+    /**
+     * 把文件内容保存到内容摘要对应的条目中,缓存中已经有相同的内容时直接删除源文件
+     *
+     * @return 固定住的内容条目, 用完后必须关闭; 相同的内容正在被提交或者保存失败时返回null, 源文件保持不变
+     */
+    private DiskLruCache.Snapshot commitContentToCache(DiskLruCache diskLruCache, File sourceFile,
+                                                       String contentKey) throws IOException {
+        DiskLruCache.Snapshot existing = diskLruCache.get(contentKey);
+        if (existing != null) {
+            //取得读取通道就会固定条目
+            existing.getChannel(CACHE_INDEX_FILE);
+            sourceFile.delete();
+            return existing;
+        }
+
+        DiskLruCache.Editor editor = diskLruCache.edit(contentKey);
+        if (editor == null) {
+            return null;
+        }
+        if (editor.adoptFile(CACHE_INDEX_FILE, sourceFile)
+                || copyFile(sourceFile, editor.newOutputStream(CACHE_INDEX_FILE))) {
+            editor.set(CACHE_INDEX_METADATA, "");
+            DiskLruCache.Snapshot snapshot = editor.commitAndPin();
+            if (snapshot != null) {
+                sourceFile.delete();
+            }
+            return snapshot;
+        }
+        editor.abort();
+        return null;
+    }
+
+    /**
+     * 只更新条目的新鲜度信息,缓存文件不变,条目正在被编辑时放弃
+     */
+    private void saveCacheMetadata(String fileCacheKey, CacheMetadata metadata) throws IOException {
+        DiskLruCache.Editor editor = getDiskLruCache().edit(fileCacheKey);
+        if (editor != null) {
+            editor.set(CACHE_INDEX_METADATA, metadata.serialize());
+            editor.commit();
+        }
+    }
+
+    /**
+     * 下载时需要计算的摘要: 任务期望的摘要,以及开启内容去重时用作内容key的SHA-256
+     */
+    private String[] getDigestAlgorithms(DownloadTask task) {
+        ExpectedContent expectedContent = task.getExpectedContent();
+        String algorithm = expectedContent != null ? expectedContent.getAlgorithm() : null;
+        boolean contentDedup = mConfig.isContentDedupEnabled();
+        if (algorithm == null) {
+            return contentDedup ? new String[]{StreamingDigest.SHA_256} : new String[0];
+        }
+        if (!contentDedup || StreamingDigest.SHA_256.equals(algorithm)) {
+            return new String[]{algorithm};
+        }
+        return new String[]{algorithm, StreamingDigest.SHA_256};
     }
 
     /**
-     * 拷贝文件流
+     * 校验下载完成的文件,通过后把算出的摘要记录到新鲜度信息中
+     * 单个连接从头下载时摘要已经在写入的同时算好了,分段下载,断点续传,
+     * 以及上次下载完成还没有提交的文件需要再读一遍文件
      *
-     * @param isNetworkStream 是否是网络流拷贝,网络流拷贝有进度提示,本地流无进度提示
+     * @param metadata 缓存新鲜度信息,为null时当作没有任何响应头
+     * @return 校验通过后的新鲜度信息, 文件不完整或者与期望的摘要和大小不一致时返回null
      */
-    private boolean copyStream(boolean isNetworkStream, InputStream inputStream, OutputStream outputStream) {
-        boolean flag = false;
+    private CacheMetadata verifyDownload(DownloadTask task, File file, CacheMetadata metadata) throws IOException {
+        if (metadata == null) {
+            metadata = CacheMetadata.empty();
+        }
 
-        //在次方法中,每次都重置为0,防止网络流拷贝和本地流拷贝导致重复累加
-        mDownloadedSize = 0L;
+        //连接提前断开时,读到的数据比服务器声明的少
+        long length = file.length();
+        long totalSize = task.getTotalSize();
+        if (totalSize >= 0 && length != totalSize) {
+            Log.e(TAG, "incomplete file " + length + "/" + totalSize + ":" + task.getFileUrl());
+            return null;
+        }
+        ExpectedContent expectedContent = task.getExpectedContent();
+        if (expectedContent != null && !expectedContent.matchesSize(length)) {
+            Log.e(TAG, "size mismatch " + length + ", " + expectedContent + ":" + task.getFileUrl());
+            return null;
+        }
+
+        String[] algorithms = getDigestAlgorithms(task);
+        if (algorithms.length == 0) {
+            return metadata;
+        }
+        StreamingDigest digest = task.getContentDigest();
+        if (digest == null || digest.getSize() != length) {
+            digest = StreamingDigest.digestFile(file, algorithms);
+        }
+        if (expectedContent != null && expectedContent.getAlgorithm() != null
+                && !expectedContent.getDigest().equals(digest.getDigest(expectedContent.getAlgorithm()))) {
+            Log.e(TAG, "digest mismatch " + digest.getDigest(expectedContent.getAlgorithm()) + ", "
+                    + expectedContent + ":" + task.getFileUrl());
+            return null;
+        }
+
+        for (String algorithm : algorithms) {
+            metadata = metadata.withDigest(algorithm, digest.getDigest(algorithm));
+        }
+        return metadata;
+    }
+
+    /**
+     * 检查缓存的文件是否符合任务期望的摘要和大小
+     * 新鲜度信息中已经有这种摘要时直接比较,没有时读一遍文件计算,并把结果保存到新鲜度信息中,下次不需要再计算
+     *
+     * @param metadata 缓存条目的新鲜度信息,没有时为null
+     */
+    private boolean verifyCachedFile(DownloadTask task, CacheMetadata metadata, File file) throws IOException {
+        ExpectedContent expectedContent = task.getExpectedContent();
+        if (expectedContent == null) {
+            return true;
+        }
+        if (!expectedContent.matchesSize(file.length())) {
+            return false;
+        }
+        String algorithm = expectedContent.getAlgorithm();
+        if (algorithm == null) {
+            return true;
+        }
+
+        String digest = metadata != null ? metadata.getDigest(algorithm) : null;
+        if (digest == null) {
+            digest = StreamingDigest.digestFile(file, algorithm).getDigest(algorithm);
+            //重新读取,条件请求可能刚刚更新过新鲜度信息
+            DiskLruCache diskLruCache = getDiskLruCache();
+            CacheMetadata current = readCacheMetadata(diskLruCache, task.getFileCacheKey());
+            if (current != null) {
+                saveCacheMetadata(task.getFileCacheKey(), current.withDigest(algorithm, digest));
+            }
+        }
+        return expectedContent.getDigest().equals(digest);
+    }
+
+    /**
+     * 检查附加到其他任务的下载上得到的结果是否符合自己期望的摘要和大小
+     */
+    private boolean verifyResult(DownloadTask task, String result) {
+        if (task.getExpectedContent() == null) {
+            return true;
+        }
 
-        BufferedInputStream in = null;
-        BufferedOutputStream out = null;
         try {
-            in = new BufferedInputStream(inputStream, 8 * 1024);
-            out = new BufferedOutputStream(outputStream, 8 * 1024);
-            byte[] buffer = new byte[8 * 1024];
-            int len;
-            while ((len = in.read(buffer)) != -1) {
-                mDownloadedSize += len;
+            CacheMetadata metadata = readCacheMetadata(getDiskLruCache(), task.getFileCacheKey());
+            return verifyCachedFile(task, metadata, new File(result));
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return false;
+        }
+    }
 
-                //如果用户已经取消,则停止文件写入
-                if (mDownloadListener != null) {
-                    if (mDownloadListener.isCanceled()) {
-                        return false;
-                    } else if (isNetworkStream) {
-                        publishProgress(mDownloadedSize, mTotalSize);
-                    }
-                }
+    /**
+     * 向服务器确认过期的缓存是否有变化,只请求第一个字节,没有变化时服务器返回304
+     * 网络出错时继续使用旧的缓存,避免离线时已经下载过的文件也不能用
+     *
+     * @return 缓存可以继续使用返回true, 服务器上的文件已经变化或者无法确认时返回false
+     */
+    private boolean revalidate(DownloadTask task, CacheMetadata metadata) {
+        //没有ETag和Last-Modified时无法发起条件请求,只能重新下载
+        if (!metadata.hasValidators()) {
+            return false;
+        }
 
-                //写入文件
-                out.write(buffer, 0, len);
+        TransportResponse response = null;
+        try {
+            response = mConfig.getTransport().execute(new TransportRequest.Builder(task.getFileUrl())
+                    .setHeader("Range", "bytes=0-0")
+                    .setHeader("If-None-Match", metadata.getETag().isEmpty() ? null : metadata.getETag())
+                    .setHeader("If-Modified-Since",
+                            metadata.getLastModified().isEmpty() ? null : metadata.getLastModified())
+                    .build());
+            if (response.getCode() != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return false;
             }
 
+            //更新确认时间,只修改新鲜度信息,缓存文件不变
+            saveCacheMetadata(task.getFileCacheKey(), metadata.refresh(response));
+            return true;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return true;
+        } finally {
+            IOUtils.closeQuietly(response);
+        }
+    }
+
+    /**
+     * 拷贝本地文件,由FileChannel.transferTo完成,不需要额外的缓冲区
+     */
+    private boolean copyFile(File sourceFile, OutputStream outputStream) {
+        boolean flag = false;
+
+        FileInputStream in = null;
+        WritableByteChannel out = null;
+        try {
+            in = new FileInputStream(sourceFile);
+            out = Channels.newChannel(outputStream);
+            IOUtils.transferFile(in.getChannel(), out);
+
             flag = true;
         } catch (final Exception e) {
             e.printStackTrace();
         } finally {
             IOUtils.closeQuietly(in);
             IOUtils.closeQuietly(out);
+            IOUtils.closeQuietly(outputStream);
         }
         return flag;
     }
 
     /**
-     * 在主线程中发布进度
+     * 网络传输共用的缓冲池
      */
-    private void publishProgress(final long downloadedSize, final long totalSize) {
-        if (mDownloadListener == null) {
-            return;
+    static BufferPool getBufferPool() {
+        return sBufferPool;
+    }
+
+    /**
+     * 网络读取限速,先满足当前下载任务的限速,再满足任务使用的全局限速
+     * 没有设置限速时立即返回
+     *
+     * @param task 真正执行下载的任务
+     */
+    void acquireBandwidth(DownloadTask task, int bytes) {
+        RateLimiter downloadRateLimiter = task.getRateLimiter();
+        if (downloadRateLimiter != null) {
+            downloadRateLimiter.acquire(bytes);
         }
 
-        sMainHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                int progress = 0;
-                if (totalSize > 0 && downloadedSize >= 0) {
-                    progress = (int) (1.0F * downloadedSize / totalSize * 100);
-                }
-                mDownloadListener.onProgress(progress, downloadedSize, totalSize);
-            }
-        });
+        RateLimiter globalRateLimiter = task.getGlobalRateLimiter();
+        if (globalRateLimiter != null) {
+            globalRateLimiter.acquire(bytes);
+        }
     }
 
     /**
      * 清除缓存目录中的所有文件,包括不是该目录中不是DiskLruCache创建的文件
+     * 清除后重新打开一个空的缓存,当前实例可以继续使用
      */
-    public void clearCache() {
+    public synchronized void clearCache() {
         try {
-            mDiskLruCache.delete();
+            if (mDiskLruCache != null) {
+                mDiskLruCache.delete();
+            }
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            mDiskLruCache = openDiskLruCache();
         }
     }
 }
@@ -0,0 +1,14 @@
+package com.chw.filedownloader;
+
+/**
+ * @author chaihongwei 2026-10-18 15:10
+ * 通过{@link DownloadScheduler}排队下载时的回调
+ */
+public interface IDownloadCallback extends IDownloadListener {
+    /**
+     * 下载结束,在主线程中回调
+     *
+     * @param cachePath 下载完成后的缓存文件路径, 下载失败或者被取消时为""
+     */
+    void onComplete(String cachePath);
+}
@@ -0,0 +1,89 @@
+package com.chw.filedownloader;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author chaihongwei 2026-10-18 14:05
+ * 正在进行中的下载,同一个url同时只有一个任务真正去下载,其他任务附加到它上面,
+ * 各自收到进度回调,并在下载结束后拿到相同的结果
+ */
+final class InFlightDownload implements IDownloadListener {
+    /**
+     * 附加的任务等待结果时,检查是否取消的时间间隔
+     */
+    private static final long CANCEL_CHECK_INTERVAL_MILLIS = 100;
+
+    private final CopyOnWriteArrayList<DownloadTask> mTasks = new CopyOnWriteArrayList<>();
+    private final CountDownLatch mCompletedLatch = new CountDownLatch(1);
+    private volatile String mResult = "";
+
+    /**
+     * 附加一个任务
+     */
+    void attach(DownloadTask task) {
+        mTasks.add(task);
+    }
+
+    /**
+     * 移除一个任务,比如任务在等待过程中取消了
+     */
+    void detach(DownloadTask task) {
+        mTasks.remove(task);
+    }
+
+    /**
+     * 下载结束,唤醒所有等待结果的任务
+     */
+    void complete(String result) {
+        mResult = result;
+        mCompletedLatch.countDown();
+    }
+
+    /**
+     * 等待下载结束
+     *
+     * @return 下载结果, 任务在等待过程中取消了则返回""
+     */
+    String await(DownloadTask task) {
+        try {
+            while (!mCompletedLatch.await(CANCEL_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (task.isCanceled()) {
+                    detach(task);
+                    return "";
+                }
+            }
+            return mResult;
+        } catch (InterruptedException e) {
+            detach(task);
+            Thread.currentThread().interrupt();
+            return "";
+        }
+    }
+
+    /**
+     * 只有所有任务都取消了,下载才停止
+     */
+    @Override
+    public boolean isCanceled() {
+        for (DownloadTask task : mTasks) {
+            if (!task.isCanceled()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 将进度分发给所有还没有取消的任务
+     */
+    @Override
+    public void onProgress(int progress, long downloadedSize, long totalSize) {
+        for (DownloadTask task : mTasks) {
+            if (!task.isCanceled()) {
+                task.dispatchProgress(progress, downloadedSize, totalSize);
+            }
+        }
+    }
+}
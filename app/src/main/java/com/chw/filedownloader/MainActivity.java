@@ -28,7 +28,7 @@ import com.chw.filedownloader.workmanager.DownloadWorker;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
-public class MainActivity extends AppCompatActivity implements IDownloadListener {
+public class MainActivity extends AppCompatActivity implements IDownloadCallback {
 
     private EditText etFileUrl;
     private EditText etCachePath;
@@ -117,8 +117,7 @@ public class MainActivity extends AppCompatActivity implements IDownloadListener
                 AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
                     @Override
                     public void run() {
-                        FileDownloader.getInstance(MainActivity.this, MainActivity.this)
-                                .clearCache();
+                        FileDownloader.getInstance(MainActivity.this).clearCache();
                         runOnUiThread(new Runnable() {
                             @Override
                             public void run() {
@@ -135,18 +134,9 @@ public class MainActivity extends AppCompatActivity implements IDownloadListener
     private void downloadFile(final String fileUrl) {
         mStopped = false;
 
-        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
-            @Override
-            public void run() {
-                final String cachePath = FileDownloader.getInstance(MainActivity.this, MainActivity.this).download(fileUrl);
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        etCachePath.setText(System.currentTimeMillis() + ":" + cachePath);
-                    }
-                });
-            }
-        });
+        //用户主动发起的下载使用高优先级,优先于后台下载任务执行
+        FileDownloader.getInstance(MainActivity.this).getScheduler()
+                .enqueue(fileUrl, DownloadScheduler.PRIORITY_HIGH, MainActivity.this);
     }
 
     /**
@@ -221,4 +211,9 @@ public class MainActivity extends AppCompatActivity implements IDownloadListener
         pbProgress.setProgress(progress);
         tvProgress.setText("" + downloadedSize + "/" + totalSize);
     }
+
+    @Override
+    public void onComplete(String cachePath) {
+        etCachePath.setText(System.currentTimeMillis() + ":" + cachePath);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,168 @@
+package com.chw.filedownloader;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.Executor;
+
+/**
+ * @author chaihongwei 2026-10-18 16:30
+ * 合并下载进度,下载线程每读一块数据都会更新进度,但只有距离上次分发超过最小时间间隔,
+ * 或者进度变化超过最小百分比时才分发,分发时只传递最新的进度
+ * 同一时间最多只有一个分发任务在executor中等待执行,不会堆积消息
+ */
+final class ProgressDispatcher implements IDownloadListener, Runnable {
+    private final IDownloadListener mDownloadListener;
+    private final Executor mExecutor;
+    private final long mMinIntervalMillis;
+    private final int mMinPercentDelta;
+
+    /**
+     * 最新的进度
+     */
+    private int mProgress;
+    private long mDownloadedSize;
+    private long mTotalSize;
+    /**
+     * 上次分发的进度和时间
+     */
+    private int mLastDispatchedProgress = -1;
+    private long mLastDispatchedTime;
+    /**
+     * 是否已经有分发任务在executor中等待执行
+     */
+    private boolean mScheduled;
+    /**
+     * 是否有还没有分发的进度
+     */
+    private boolean mPending;
+
+    /**
+     * @param downloadListener  真正接收进度的listener
+     * @param executor          分发进度的线程
+     * @param minIntervalMillis 两次分发的最小时间间隔,0表示不按时间间隔分发
+     * @param minPercentDelta   两次分发的最小进度变化,0表示不按进度变化分发
+     */
+    ProgressDispatcher(IDownloadListener downloadListener, Executor executor,
+                       long minIntervalMillis, int minPercentDelta) {
+        this.mDownloadListener = downloadListener;
+        this.mExecutor = executor;
+        this.mMinIntervalMillis = minIntervalMillis;
+        this.mMinPercentDelta = minPercentDelta;
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return mDownloadListener.isCanceled();
+    }
+
+    /**
+     * 在下载线程中调用,记录最新进度,满足条件时提交分发任务
+     */
+    @Override
+    public void onProgress(int progress, long downloadedSize, long totalSize) {
+        synchronized (this) {
+            //分段下载时多个线程同时更新进度,丢弃比当前进度旧的值
+            if (totalSize == mTotalSize && downloadedSize < mDownloadedSize) {
+                return;
+            }
+
+            mProgress = progress;
+            mDownloadedSize = downloadedSize;
+            mTotalSize = totalSize;
+            mPending = true;
+
+            boolean finished = totalSize > 0 && downloadedSize >= totalSize;
+            long now = SystemClock.uptimeMillis();
+            if (!finished && !isDue(now, progress, totalSize)) {
+                return;
+            }
+            mLastDispatchedTime = now;
+            mLastDispatchedProgress = progress;
+
+            if (!schedule()) {
+                return;
+            }
+        }
+
+        mExecutor.execute(this);
+    }
+
+    /**
+     * 距离上次分发超过最小时间间隔,或者进度变化超过最小百分比时需要分发,满足任意一个即可
+     * 文件大小未知时进度一直为0,只按时间间隔分发,两个条件都没有设置时每次都分发
+     */
+    private boolean isDue(long now, int progress, long totalSize) {
+        boolean checkInterval = mMinIntervalMillis > 0;
+        boolean checkDelta = mMinPercentDelta > 0 && totalSize > 0;
+        if (!checkInterval && !checkDelta) {
+            return true;
+        }
+        return (checkInterval && now - mLastDispatchedTime >= mMinIntervalMillis)
+                || (checkDelta && Math.abs(progress - mLastDispatchedProgress) >= mMinPercentDelta);
+    }
+
+    /**
+     * 下载成功后调用,保证最后一定会分发一次100%的进度
+     * 没有收到过任何进度时(比如直接命中缓存)不分发
+     */
+    void finish() {
+        synchronized (this) {
+            if (mDownloadedSize <= 0 && mTotalSize <= 0) {
+                return;
+            }
+            if (mLastDispatchedProgress == 100 && !mPending) {
+                return;
+            }
+
+            //服务器没有返回文件大小时,以实际下载的大小作为总大小
+            long totalSize = Math.max(mDownloadedSize, mTotalSize);
+            mProgress = 100;
+            mDownloadedSize = totalSize;
+            mTotalSize = totalSize;
+            mPending = true;
+            mLastDispatchedProgress = 100;
+
+            if (!schedule()) {
+                return;
+            }
+        }
+
+        mExecutor.execute(this);
+    }
+
+    /**
+     * 标记有分发任务需要提交
+     *
+     * @return 需要提交新的分发任务返回true, 已经有分发任务在等待执行时返回false, 它会分发最新的进度
+     */
+    private boolean schedule() {
+        if (mScheduled) {
+            return false;
+        }
+        mScheduled = true;
+        return true;
+    }
+
+    /**
+     * 在executor中执行,分发最新的进度
+     */
+    @Override
+    public void run() {
+        int progress;
+        long downloadedSize;
+        long totalSize;
+        synchronized (this) {
+            mScheduled = false;
+            if (!mPending) {
+                return;
+            }
+            mPending = false;
+
+            progress = mProgress;
+            downloadedSize = mDownloadedSize;
+            totalSize = mTotalSize;
+        }
+
+        mDownloadListener.onProgress(progress, downloadedSize, totalSize);
+    }
+}
@@ -0,0 +1,293 @@
+package com.chw.filedownloader;
+
+import android.util.Log;
+
+import com.chw.filedownloader.constant.ByteConstants;
+import com.chw.filedownloader.transport.Transport;
+import com.chw.filedownloader.transport.TransportRequest;
+import com.chw.filedownloader.transport.TransportResponse;
+import com.chw.filedownloader.utils.IOUtils;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author chaihongwei 2026-10-18 10:40
+ * 分段下载,将文件拆分成多个字节范围,每一段使用单独的连接并行下载,写入同一个RandomAccessFile
+ */
+final class SegmentDownloader {
+    private static final String TAG = SegmentDownloader.class.getSimpleName();
+    /**
+     * 每一段的最小大小,文件太小时分段没有意义,只会多出几次连接的开销
+     */
+    static final long MIN_SEGMENT_SIZE = ByteConstants.MB;
+
+    /**
+     * 所有分段共用的线程池,线程空闲60秒后回收
+     */
+    private static final ExecutorService sSegmentExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+
+    private final FileDownloader mFileDownloader;
+    /**
+     * 真正执行下载的任务,所有分段共享它的字节计数,限速器和取消控制
+     */
+    private final DownloadTask mTask;
+    private final DownloadRecord mRecord;
+    /**
+     * 任意一段失败后置为true,通知其他分段尽快停止
+     */
+    private final AtomicBoolean mAborted = new AtomicBoolean();
+    /**
+     * 服务器上的文件与记录中的不一致,已经下载的部分不能再用
+     */
+    private final AtomicBoolean mRemoteChanged = new AtomicBoolean();
+
+    SegmentDownloader(FileDownloader fileDownloader, DownloadTask task, DownloadRecord record) {
+        this.mFileDownloader = fileDownloader;
+        this.mTask = task;
+        this.mRecord = record;
+    }
+
+    /**
+     * 探测文件总大小以及服务器是否支持分块下载,支持时按文件大小创建分段记录
+     *
+     * @param transport       传输层
+     * @param task            真正执行下载的任务,同时记下响应中的缓存新鲜度信息
+     * @param recordFile      分段记录文件
+     * @param maxSegmentCount 最大分段数
+     * @return 服务器支持分块下载并且文件大到值得分段时返回还没有保存的分段记录, 否则返回null
+     */
+    static DownloadRecord probe(Transport transport, DownloadTask task, File recordFile, int maxSegmentCount) {
+        TransportResponse response = null;
+        try {
+            //只请求第一个字节,响应头Content-Range中会带上文件总大小,如: bytes 0-0/1024
+            response = transport.execute(new TransportRequest.Builder(task.getFileUrl())
+                    .setHeader("Range", "bytes=0-0")
+                    .build());
+
+            if (response.getCode() == HttpURLConnection.HTTP_PARTIAL) {
+                task.setCacheMetadata(CacheMetadata.fromResponse(response));
+
+                long totalSize = parseTotalSize(response.getHeader("Content-Range"));
+                int segmentCount = computeSegmentCount(totalSize, maxSegmentCount);
+                if (segmentCount > 1) {
+                    return DownloadRecord.create(recordFile, totalSize, response.getHeader("ETag"),
+                            response.getHeader("Last-Modified"), segmentCount);
+                }
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            IOUtils.closeQuietly(response);
+        }
+        return null;
+    }
+
+    /**
+     * 从Content-Range中解析文件总大小,如: bytes 0-0/1024
+     *
+     * @return 总大小未知时返回-1
+     */
+    static long parseTotalSize(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        String totalSize = contentRange.substring(contentRange.lastIndexOf('/') + 1).trim();
+        //总大小未知时为"*"
+        if ("*".equals(totalSize)) {
+            return -1;
+        }
+        return Long.parseLong(totalSize);
+    }
+
+    /**
+     * 根据文件大小计算实际使用的分段数,保证每一段不小于{@link #MIN_SEGMENT_SIZE}
+     */
+    static int computeSegmentCount(long totalSize, int maxSegmentCount) {
+        long count = totalSize / MIN_SEGMENT_SIZE;
+        return (int) Math.max(1, Math.min(count, maxSegmentCount));
+    }
+
+    /**
+     * 并行下载所有未完成的分段
+     *
+     * @param saveFile 保存到的文件
+     * @return 所有分段都下载完成返回true, 任意一段失败或者用户取消返回false
+     */
+    boolean download(File saveFile) {
+        RandomAccessFile raf = null;
+        WriteCheckpointer checkpointer = null;
+        List<Future<Boolean>> futures = new ArrayList<>();
+        try {
+            //不使用"rwd",由落盘策略决定何时落盘
+            raf = new RandomAccessFile(saveFile, "rw");
+            //预先分配文件大小,各分段直接写入各自的位置
+            if (raf.length() != mRecord.getTotalSize()) {
+                raf.setLength(mRecord.getTotalSize());
+            }
+            final FileChannel channel = raf.getChannel();
+            final WriteCheckpointer segmentCheckpointer = new WriteCheckpointer(mFileDownloader.getConfig(),
+                    channel, mRecord);
+            checkpointer = segmentCheckpointer;
+
+            mTask.resetProgress(mRecord.getFinishedSize(), mRecord.getTotalSize());
+
+            for (int i = 0; i < mRecord.getSegmentCount(); i++) {
+                if (mRecord.isSegmentFinished(i)) {
+                    continue;
+                }
+
+                final int index = i;
+                futures.add(sSegmentExecutor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        boolean success = downloadSegment(index, channel, segmentCheckpointer);
+                        if (!success) {
+                            mAborted.set(true);
+                        }
+                        return success;
+                    }
+                }));
+            }
+
+            boolean flag = true;
+            for (Future<Boolean> future : futures) {
+                if (!future.get()) {
+                    flag = false;
+                }
+            }
+
+            if (flag) {
+                //全部落盘后才删除记录,之后文件会被提交到缓存中
+                checkpointer.sync();
+                mRecord.delete();
+            } else {
+                checkpointer.checkpointQuietly();
+            }
+            return flag;
+        } catch (Exception ex) {
+            ex.printStackTrace();
+
+            mAborted.set(true);
+            for (Future<Boolean> future : futures) {
+                future.cancel(true);
+            }
+            if (checkpointer != null) {
+                checkpointer.checkpointQuietly();
+            }
+            return false;
+        } finally {
+            IOUtils.closeQuietly(raf);
+        }
+    }
+
+    /**
+     * 下载失败是否是因为服务器上的文件已经变化,此时需要删除记录从头下载
+     */
+    boolean isRemoteChanged() {
+        return mRemoteChanged.get();
+    }
+
+    /**
+     * 下载第index段中还没有下载的部分
+     */
+    private boolean downloadSegment(int index, FileChannel channel, WriteCheckpointer checkpointer) {
+        long position = mRecord.getNextPosition(index);
+        long end = mRecord.getEnd(index);
+
+        TransportResponse response = null;
+        ByteBuffer buffer = null;
+        try {
+            //服务器上的文件变化时,服务器会忽略Range返回200和整个新文件
+            response = mFileDownloader.getConfig().getTransport().execute(
+                    new TransportRequest.Builder(mTask.getFileUrl())
+                            .setHeader("Range", "bytes=" + position + "-" + end)
+                            .setHeader("If-Range", mRecord.getIfRange())
+                            .build());
+
+            int responseCode = response.getCode();
+            if (responseCode == HttpURLConnection.HTTP_OK || (responseCode == HttpURLConnection.HTTP_PARTIAL
+                    && !isSameRemoteFile(response))) {
+                Log.e(TAG, "segment " + index + " remote file changed, response code:" + responseCode);
+                mRemoteChanged.set(true);
+                return false;
+            }
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                Log.e(TAG, "segment " + index + " unexpected response code:" + responseCode);
+                return false;
+            }
+            //断点续传时没有探测请求,从分段的响应中记下缓存新鲜度信息
+            mTask.setCacheMetadata(CacheMetadata.fromResponse(response));
+
+            ReadableByteChannel in = Channels.newChannel(response.getBody());
+            buffer = FileDownloader.getBufferPool().acquire();
+            int len;
+            while (position <= end) {
+                //服务器多返回的数据不能写到下一段中
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position + 1));
+                if ((len = IOUtils.fill(in, buffer)) == -1) {
+                    break;
+                }
+
+                //如果用户已经取消,或者其他分段已经失败,则停止文件写入
+                if (mAborted.get() || mTask.isTransferCanceled()) {
+                    return false;
+                }
+
+                buffer.flip();
+                position = IOUtils.writeFully(channel, buffer, position);
+
+                //数据写入后再更新记录,保证记录中的进度不会超过实际写入的数据
+                mRecord.addFinished(index, len);
+                checkpointer.onWritten(len);
+
+                mTask.publishProgress(mTask.addDownloadedSize(len));
+
+                mFileDownloader.acquireBandwidth(mTask, len);
+            }
+
+            return mRecord.isSegmentFinished(index);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return false;
+        } finally {
+            //关闭响应后连接放回连接池,下一段或者下一个下载可以直接复用
+            //被取消,其他分段已经失败或者服务器返回了整个新文件时直接断开连接,不读取剩余的数据
+            if (response != null && (mTask.isTransferCanceled() || mAborted.get() || mRemoteChanged.get())) {
+                response.abort();
+            } else {
+                IOUtils.closeQuietly(response);
+            }
+            FileDownloader.getBufferPool().release(buffer);
+        }
+    }
+
+    /**
+     * 检查分块响应中的文件总大小和ETag是否与记录中的一致
+     * 服务器不返回ETag和Last-Modified时,只能通过文件总大小判断
+     */
+    private boolean isSameRemoteFile(TransportResponse response) {
+        if (parseTotalSize(response.getHeader("Content-Range")) != mRecord.getTotalSize()) {
+            return false;
+        }
+
+        String eTag = response.getHeader("ETag");
+        return eTag == null || mRecord.getETag().isEmpty() || eTag.equals(mRecord.getETag());
+    }
+}
@@ -0,0 +1,92 @@
+package com.chw.filedownloader;
+
+import android.os.SystemClock;
+
+import com.chw.filedownloader.config.FileDownloaderConfig;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author chaihongwei 2026-10-18 18:50
+ * 按配置的落盘策略决定下载中的文件何时落盘,并在落盘后保存断点记录
+ * 分段下载时所有分段共用一个实例,按所有分段写入的总字节数计算
+ */
+final class WriteCheckpointer {
+    private final int mDurability;
+    private final long mCheckpointBytes;
+    private final long mCheckpointIntervalMillis;
+    private final FileChannel mChannel;
+    /**
+     * 断点记录,服务器不支持分块下载时为null,此时只落盘不记录
+     */
+    private final DownloadRecord mRecord;
+
+    /**
+     * 上次断点之后写入的字节数
+     */
+    private long mUncheckpointedBytes;
+    private long mLastCheckpointTime;
+
+    WriteCheckpointer(FileDownloaderConfig config, FileChannel channel, DownloadRecord record) {
+        this.mDurability = config.getDurability();
+        this.mCheckpointBytes = config.getCheckpointBytes();
+        this.mCheckpointIntervalMillis = config.getCheckpointIntervalMillis();
+        this.mChannel = channel;
+        this.mRecord = record;
+        this.mLastCheckpointTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * 写入length字节后调用,达到落盘条件时保存断点
+     * 调用前需要先更新断点记录中的进度
+     */
+    void onWritten(long length) throws IOException {
+        synchronized (this) {
+            mUncheckpointedBytes += length;
+
+            long now = SystemClock.uptimeMillis();
+            if (mDurability != FileDownloaderConfig.DURABILITY_PER_WRITE
+                    && mUncheckpointedBytes < mCheckpointBytes
+                    && now - mLastCheckpointTime < mCheckpointIntervalMillis) {
+                return;
+            }
+            mUncheckpointedBytes = 0;
+            mLastCheckpointTime = now;
+        }
+
+        checkpoint();
+    }
+
+    /**
+     * 立即保存断点,下载停止时调用,保证下次可以从尽量靠后的位置继续
+     */
+    void checkpoint() throws IOException {
+        boolean force = mDurability != FileDownloaderConfig.DURABILITY_NONE;
+        if (mRecord != null) {
+            mRecord.checkpoint(mChannel, force);
+        } else if (force) {
+            mChannel.force(false);
+        }
+    }
+
+    /**
+     * 下载出错时调用,保存失败时记录停留在上一次断点,下次从那里继续
+     */
+    void checkpointQuietly() {
+        try {
+            checkpoint();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * 下载完成后调用,提交到缓存前让文件完整落盘
+     */
+    void sync() throws IOException {
+        if (mDurability != FileDownloaderConfig.DURABILITY_NONE) {
+            mChannel.force(false);
+        }
+    }
+}
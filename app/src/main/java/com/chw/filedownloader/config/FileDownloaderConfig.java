@@ -5,15 +5,60 @@ import android.content.Context;
 import androidx.annotation.NonNull;
 
 import com.chw.filedownloader.constant.ByteConstants;
+import com.chw.filedownloader.transport.HttpUrlConnectionTransport;
+import com.chw.filedownloader.transport.Transport;
 import com.chw.filedownloader.utils.FileCacheUtils;
+import com.chw.filedownloader.utils.RateLimiter;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * @author chaihongwei 2020-07-09 13:52
  * 文件下载配置信息
  */
 public class FileDownloaderConfig {
+    /**
+     * 下载中的文件不主动落盘,由系统决定何时写入存储,写入最快,
+     * 但断电后断点续传可能信任还没有落盘的数据
+     */
+    public static final int DURABILITY_NONE = 0;
+    /**
+     * 每写入一定字节数或者经过一定时间落盘一次,并保存断点记录,断点续传只信任最后一次落盘前的数据
+     */
+    public static final int DURABILITY_CHECKPOINT = 1;
+    /**
+     * 每次写入都落盘并保存断点记录,最安全,但在闪存上写入很慢
+     */
+    public static final int DURABILITY_PER_WRITE = 2;
+
+    /**
+     * 缓存淘汰策略: 最近最少使用,淘汰最久没有使用的文件
+     */
+    public static final int EVICTION_LRU = 0;
+    /**
+     * 缓存淘汰策略: 带频率准入的LRU,新文件在下载后被再次使用过之前,访问频率低于要被淘汰的文件时不保留新文件,
+     * 一次性下载的大文件不会把经常使用的小文件挤出缓存
+     */
+    public static final int EVICTION_TINY_LFU = 1;
+    /**
+     * 缓存淘汰策略: GreedyDual-Size,同时考虑访问时间和文件大小,优先淘汰大文件,
+     * 同样的缓存空间可以留住更多的小文件
+     */
+    public static final int EVICTION_GREEDY_DUAL_SIZE = 2;
+
+    /**
+     * 缓存目录结构: 所有缓存文件直接放在缓存目录下
+     */
+    public static final int CACHE_LAYOUT_FLAT = 0;
+    /**
+     * 缓存目录结构: 缓存文件按key的哈希值分散到两级子目录下,每个目录中的文件数少,
+     * 缓存几万个文件时查找,删除和遍历目录都更快
+     */
+    public static final int CACHE_LAYOUT_SHARDED = 1;
+
     /**
      * 缓存文件版本号,版本号不一致,以前的缓存数据会被清空
      */
@@ -26,21 +71,132 @@ public class FileDownloaderConfig {
      * 默认缓存文件目录名称
      */
     private static final String DEFAULT_CACHE_DIR_NAME = "__file_cache_dir__";
+    /**
+     * 默认分段数,1表示不分段,使用单个连接下载
+     */
+    private static final int DEFAULT_SEGMENT_COUNT = 1;
+    /**
+     * 最大分段数
+     */
+    private static final int MAX_SEGMENT_COUNT = 16;
+    /**
+     * 调度器默认同时下载的任务总数
+     */
+    private static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 3;
+    /**
+     * 调度器默认每个域名同时下载的任务数
+     */
+    private static final int DEFAULT_MAX_DOWNLOADS_PER_HOST = 2;
+    /**
+     * 默认两次进度回调的最小时间间隔,100毫秒
+     */
+    private static final long DEFAULT_PROGRESS_INTERVAL_MILLIS = 100;
+    /**
+     * 默认两次进度回调的最小进度变化,1%
+     */
+    private static final int DEFAULT_PROGRESS_PERCENT_DELTA = 1;
+    /**
+     * 默认每写入4M落盘一次
+     */
+    private static final long DEFAULT_CHECKPOINT_BYTES = 4 * ByteConstants.MB;
+    /**
+     * 默认最多每2秒落盘一次
+     */
+    private static final long DEFAULT_CHECKPOINT_INTERVAL_MILLIS = 2000;
+    /**
+     * 默认连接超时时间,15秒
+     */
+    private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    /**
+     * 默认读取超时时间,30秒
+     */
+    private static final int DEFAULT_READ_TIMEOUT_MILLIS = 30 * 1000;
+    /**
+     * 默认缓存有效期,-1表示由服务器的Cache-Control决定,服务器没有指定时永不过期
+     */
+    private static final long DEFAULT_CACHE_TTL_MILLIS = -1;
 
     private Context mAppContext;
     private int mCacheVersion;
     private long mMaxCacheSize;
     private File mCacheDir;
+    private int mSegmentCount;
+    private long mMaxBytesPerSecond;
+    private RateLimiter mGlobalRateLimiter;
+    private int mMaxConcurrentDownloads;
+    private int mMaxDownloadsPerHost;
+    private long mProgressIntervalMillis;
+    private int mProgressPercentDelta;
+    private Executor mProgressExecutor;
+    private int mDurability;
+    private long mCheckpointBytes;
+    private long mCheckpointIntervalMillis;
+    private int mConnectTimeoutMillis;
+    private int mReadTimeoutMillis;
+    private Transport mTransport;
+    /**
+     * 没有设置传输层,使用按超时时间创建的默认传输层
+     */
+    private boolean mDefaultTransport;
+    private long mCacheTtlMillis;
+    private int mEvictionPolicy;
+    private int mCacheLayout;
+    private boolean mContentDedupEnabled;
 
     private FileDownloaderConfig(Builder builder) {
         this.mAppContext = builder.mAppContext;
         this.mCacheVersion = builder.mCacheVersion;
+        this.mMaxCacheSize = builder.mMaxCacheSize;
+        this.mCacheDir = builder.mCacheDir;
+        this.mSegmentCount = Math.max(1, Math.min(builder.mSegmentCount, MAX_SEGMENT_COUNT));
+        this.mMaxBytesPerSecond = builder.mMaxBytesPerSecond;
+        this.mGlobalRateLimiter = builder.mGlobalRateLimiter;
+        this.mMaxConcurrentDownloads = Math.max(1, builder.mMaxConcurrentDownloads);
+        this.mMaxDownloadsPerHost = Math.max(1, builder.mMaxDownloadsPerHost);
+        this.mProgressIntervalMillis = Math.max(0, builder.mProgressIntervalMillis);
+        this.mProgressPercentDelta = Math.max(0, builder.mProgressPercentDelta);
+        this.mProgressExecutor = builder.mProgressExecutor;
+        this.mDurability = builder.mDurability;
+        this.mCheckpointBytes = builder.mCheckpointBytes;
+        this.mCheckpointIntervalMillis = builder.mCheckpointIntervalMillis;
+        this.mConnectTimeoutMillis = Math.max(0, builder.mConnectTimeoutMillis);
+        this.mReadTimeoutMillis = Math.max(0, builder.mReadTimeoutMillis);
+        this.mTransport = builder.mTransport;
+        this.mCacheTtlMillis = builder.mCacheTtlMillis;
+        this.mEvictionPolicy = builder.mEvictionPolicy;
+        this.mCacheLayout = builder.mCacheLayout;
+        this.mContentDedupEnabled = builder.mContentDedupEnabled;
+
+        if (mDurability < DURABILITY_NONE || mDurability > DURABILITY_PER_WRITE) {
+            this.mDurability = DURABILITY_CHECKPOINT;
+        }
+
+        if (mEvictionPolicy < EVICTION_LRU || mEvictionPolicy > EVICTION_GREEDY_DUAL_SIZE) {
+            this.mEvictionPolicy = EVICTION_LRU;
+        }
+
+        if (mCacheLayout < CACHE_LAYOUT_FLAT || mCacheLayout > CACHE_LAYOUT_SHARDED) {
+            this.mCacheLayout = CACHE_LAYOUT_FLAT;
+        }
 
-        if (builder.mMaxCacheSize == 0) {
+        if (mCheckpointBytes <= 0) {
+            this.mCheckpointBytes = DEFAULT_CHECKPOINT_BYTES;
+        }
+
+        if (mCheckpointIntervalMillis <= 0) {
+            this.mCheckpointIntervalMillis = DEFAULT_CHECKPOINT_INTERVAL_MILLIS;
+        }
+
+        if (mMaxCacheSize <= 0) {
             this.mMaxCacheSize = MAX_CACHE_SIZE;
         }
 
-        if (builder.mCacheDir == null) {
+        if (mTransport == null) {
+            this.mDefaultTransport = true;
+            this.mTransport = new HttpUrlConnectionTransport(mConnectTimeoutMillis, mReadTimeoutMillis);
+        }
+
+        if (mCacheDir == null) {
             mCacheDir = getDiskCacheDir(mAppContext, DEFAULT_CACHE_DIR_NAME);
         }
     }
@@ -61,11 +217,195 @@ public class FileDownloaderConfig {
         return mCacheDir;
     }
 
+    public int getSegmentCount() {
+        return mSegmentCount;
+    }
+
+    public long getMaxBytesPerSecond() {
+        return mMaxBytesPerSecond;
+    }
+
+    public RateLimiter getGlobalRateLimiter() {
+        return mGlobalRateLimiter;
+    }
+
+    public int getMaxConcurrentDownloads() {
+        return mMaxConcurrentDownloads;
+    }
+
+    public int getMaxDownloadsPerHost() {
+        return mMaxDownloadsPerHost;
+    }
+
+    public long getProgressIntervalMillis() {
+        return mProgressIntervalMillis;
+    }
+
+    public int getProgressPercentDelta() {
+        return mProgressPercentDelta;
+    }
+
+    /**
+     * 进度回调的线程,为null时在主线程中回调
+     */
+    public Executor getProgressExecutor() {
+        return mProgressExecutor;
+    }
+
+    /**
+     * 下载中文件的落盘策略,{@link #DURABILITY_NONE},{@link #DURABILITY_CHECKPOINT}或{@link #DURABILITY_PER_WRITE}
+     */
+    public int getDurability() {
+        return mDurability;
+    }
+
+    public long getCheckpointBytes() {
+        return mCheckpointBytes;
+    }
+
+    public long getCheckpointIntervalMillis() {
+        return mCheckpointIntervalMillis;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return mConnectTimeoutMillis;
+    }
+
+    public int getReadTimeoutMillis() {
+        return mReadTimeoutMillis;
+    }
+
+    /**
+     * 下载使用的传输层,没有设置时为使用连接超时和读取超时创建的{@link HttpUrlConnectionTransport}
+     */
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * 客户端设置的缓存有效期,单位毫秒,小于0表示不限制
+     */
+    public long getCacheTtlMillis() {
+        return mCacheTtlMillis;
+    }
+
+    /**
+     * 缓存淘汰策略,{@link #EVICTION_LRU},{@link #EVICTION_TINY_LFU}或{@link #EVICTION_GREEDY_DUAL_SIZE}
+     */
+    public int getEvictionPolicy() {
+        return mEvictionPolicy;
+    }
+
+    /**
+     * 缓存目录结构,{@link #CACHE_LAYOUT_FLAT}或{@link #CACHE_LAYOUT_SHARDED}
+     */
+    public int getCacheLayout() {
+        return mCacheLayout;
+    }
+
+    /**
+     * 是否按文件内容去重,内容相同的文件只在缓存中保存一份
+     */
+    public boolean isContentDedupEnabled() {
+        return mContentDedupEnabled;
+    }
+
+    /**
+     * 比较两个配置中由同一个缓存目录的FileDownloader共享的设置
+     * 同一个缓存目录只会按第一次的配置创建实例,之后传入的不同设置不会生效
+     *
+     * @return 不一致的设置名称, 完全一致时为空
+     */
+    public List<String> findDifferences(@NonNull FileDownloaderConfig other) {
+        List<String> differences = new ArrayList<>();
+        if (mCacheVersion != other.mCacheVersion) {
+            differences.add("cacheVersion");
+        }
+        if (mMaxCacheSize != other.mMaxCacheSize) {
+            differences.add("maxCacheSize");
+        }
+        if (mSegmentCount != other.mSegmentCount) {
+            differences.add("segmentCount");
+        }
+        if (mMaxBytesPerSecond != other.mMaxBytesPerSecond) {
+            differences.add("maxBytesPerSecond");
+        }
+        if (mGlobalRateLimiter != other.mGlobalRateLimiter) {
+            differences.add("globalRateLimiter");
+        }
+        if (mMaxConcurrentDownloads != other.mMaxConcurrentDownloads) {
+            differences.add("maxConcurrentDownloads");
+        }
+        if (mMaxDownloadsPerHost != other.mMaxDownloadsPerHost) {
+            differences.add("maxDownloadsPerHost");
+        }
+        if (mProgressIntervalMillis != other.mProgressIntervalMillis) {
+            differences.add("progressIntervalMillis");
+        }
+        if (mProgressPercentDelta != other.mProgressPercentDelta) {
+            differences.add("progressPercentDelta");
+        }
+        if (mProgressExecutor != other.mProgressExecutor) {
+            differences.add("progressExecutor");
+        }
+        if (mDurability != other.mDurability) {
+            differences.add("durability");
+        }
+        if (mCheckpointBytes != other.mCheckpointBytes) {
+            differences.add("checkpointBytes");
+        }
+        if (mCheckpointIntervalMillis != other.mCheckpointIntervalMillis) {
+            differences.add("checkpointIntervalMillis");
+        }
+        //默认传输层每次都会新建,只比较超时时间
+        if (mDefaultTransport && other.mDefaultTransport) {
+            if (mConnectTimeoutMillis != other.mConnectTimeoutMillis) {
+                differences.add("connectTimeoutMillis");
+            }
+            if (mReadTimeoutMillis != other.mReadTimeoutMillis) {
+                differences.add("readTimeoutMillis");
+            }
+        } else if (mTransport != other.mTransport) {
+            differences.add("transport");
+        }
+        if (mCacheTtlMillis != other.mCacheTtlMillis) {
+            differences.add("cacheTtlMillis");
+        }
+        if (mEvictionPolicy != other.mEvictionPolicy) {
+            differences.add("evictionPolicy");
+        }
+        if (mCacheLayout != other.mCacheLayout) {
+            differences.add("cacheLayout");
+        }
+        if (mContentDedupEnabled != other.mContentDedupEnabled) {
+            differences.add("contentDedupEnabled");
+        }
+        return differences;
+    }
+
     public static class Builder {
         private Context mAppContext;
         private int mCacheVersion = CACHE_VERSION;
         private long mMaxCacheSize;
         private File mCacheDir;
+        private int mSegmentCount = DEFAULT_SEGMENT_COUNT;
+        private long mMaxBytesPerSecond;
+        private RateLimiter mGlobalRateLimiter;
+        private int mMaxConcurrentDownloads = DEFAULT_MAX_CONCURRENT_DOWNLOADS;
+        private int mMaxDownloadsPerHost = DEFAULT_MAX_DOWNLOADS_PER_HOST;
+        private long mProgressIntervalMillis = DEFAULT_PROGRESS_INTERVAL_MILLIS;
+        private int mProgressPercentDelta = DEFAULT_PROGRESS_PERCENT_DELTA;
+        private Executor mProgressExecutor;
+        private int mDurability = DURABILITY_CHECKPOINT;
+        private long mCheckpointBytes = DEFAULT_CHECKPOINT_BYTES;
+        private long mCheckpointIntervalMillis = DEFAULT_CHECKPOINT_INTERVAL_MILLIS;
+        private int mConnectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+        private int mReadTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+        private Transport mTransport;
+        private long mCacheTtlMillis = DEFAULT_CACHE_TTL_MILLIS;
+        private int mEvictionPolicy = EVICTION_LRU;
+        private int mCacheLayout = CACHE_LAYOUT_FLAT;
+        private boolean mContentDedupEnabled;
 
         public Builder(@NonNull Context appContext) {
             this.mAppContext = appContext.getApplicationContext();
@@ -95,6 +435,172 @@ public class FileDownloaderConfig {
             return this;
         }
 
+        /**
+         * 设置分段下载的分段数,默认为1,即不分段
+         * 大于1时,如果服务器支持分块下载,会将文件拆分成多段并行下载,最大16段
+         */
+        public Builder setSegmentCount(int segmentCount) {
+            mSegmentCount = segmentCount;
+            return this;
+        }
+
+        /**
+         * 设置单个下载任务的默认最大下载速度,单位字节/秒,默认不限速
+         * 分段下载时,所有分段共享这个速度,单个任务可以通过{@link com.chw.filedownloader.DownloadTask#setMaxBytesPerSecond}覆盖
+         */
+        public Builder setMaxBytesPerSecond(long maxBytesPerSecond) {
+            mMaxBytesPerSecond = maxBytesPerSecond;
+            return this;
+        }
+
+        /**
+         * 设置默认的全局限速器,默认不限速
+         * 使用同一个限速器的所有下载任务共享它的速度,比如后台预下载共用一个限速器,
+         * 而用户主动发起的下载不设置限速器,就不会被后台任务拖慢
+         * 同一个缓存目录的下载共用第一次创建时的配置,不同调用方需要不同的限速时,
+         * 通过{@link com.chw.filedownloader.DownloadTask#setGlobalRateLimiter}按任务设置
+         */
+        public Builder setGlobalRateLimiter(RateLimiter globalRateLimiter) {
+            mGlobalRateLimiter = globalRateLimiter;
+            return this;
+        }
+
+        /**
+         * 设置下载调度器同时下载的任务总数,默认3个
+         */
+        public Builder setMaxConcurrentDownloads(int maxConcurrentDownloads) {
+            mMaxConcurrentDownloads = maxConcurrentDownloads;
+            return this;
+        }
+
+        /**
+         * 设置下载调度器每个域名同时下载的任务数,默认2个
+         */
+        public Builder setMaxDownloadsPerHost(int maxDownloadsPerHost) {
+            mMaxDownloadsPerHost = maxDownloadsPerHost;
+            return this;
+        }
+
+        /**
+         * 设置两次进度回调的最小时间间隔,默认100毫秒,0表示不按时间间隔回调
+         * 与最小进度变化任意一个满足时就回调,文件大小未知时只按时间间隔回调
+         */
+        public Builder setProgressIntervalMillis(long progressIntervalMillis) {
+            mProgressIntervalMillis = progressIntervalMillis;
+            return this;
+        }
+
+        /**
+         * 设置两次进度回调的最小进度变化,默认1%,0表示不按进度变化回调
+         * 与最小时间间隔任意一个满足时就回调,两个都为0时每次读取数据都回调,下载完成时的100%一定会回调
+         */
+        public Builder setProgressPercentDelta(int progressPercentDelta) {
+            mProgressPercentDelta = progressPercentDelta;
+            return this;
+        }
+
+        /**
+         * 设置进度回调的线程,默认在主线程中回调
+         */
+        public Builder setProgressExecutor(Executor progressExecutor) {
+            mProgressExecutor = progressExecutor;
+            return this;
+        }
+
+        /**
+         * 设置下载中文件的落盘策略,默认{@link #DURABILITY_CHECKPOINT}
+         */
+        public Builder setDurability(int durability) {
+            mDurability = durability;
+            return this;
+        }
+
+        /**
+         * 设置{@link #DURABILITY_CHECKPOINT}策略下每写入多少字节落盘一次,默认4M
+         */
+        public Builder setCheckpointBytes(long checkpointBytes) {
+            mCheckpointBytes = checkpointBytes;
+            return this;
+        }
+
+        /**
+         * 设置{@link #DURABILITY_CHECKPOINT}策略下最多每隔多久落盘一次,默认2秒
+         * 与字节数任意一个满足时就落盘
+         */
+        public Builder setCheckpointIntervalMillis(long checkpointIntervalMillis) {
+            mCheckpointIntervalMillis = checkpointIntervalMillis;
+            return this;
+        }
+
+        /**
+         * 设置连接超时时间,默认15秒,0表示不超时
+         * 只对默认的传输层有效,设置了{@link #setTransport}时由自定义的传输层决定
+         */
+        public Builder setConnectTimeoutMillis(int connectTimeoutMillis) {
+            mConnectTimeoutMillis = connectTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * 设置读取超时时间,默认30秒,0表示不超时
+         * 只对默认的传输层有效,设置了{@link #setTransport}时由自定义的传输层决定
+         */
+        public Builder setReadTimeoutMillis(int readTimeoutMillis) {
+            mReadTimeoutMillis = readTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * 设置传输层,默认使用基于HttpURLConnection并复用keep-alive连接的实现,
+         * 测试时可以设置为{@link com.chw.filedownloader.transport.LocalTransport}
+         */
+        public Builder setTransport(Transport transport) {
+            mTransport = transport;
+            return this;
+        }
+
+        /**
+         * 设置缓存有效期,单位毫秒,默认-1,即只由服务器的Cache-Control max-age决定,服务器没有指定时永不过期
+         * 与服务器指定的有效期同时存在时取较小的一个,过期的缓存使用前会通过条件请求向服务器确认是否有更新
+         */
+        public Builder setCacheTtlMillis(long cacheTtlMillis) {
+            mCacheTtlMillis = cacheTtlMillis;
+            return this;
+        }
+
+        /**
+         * 设置缓存超出最大缓存大小时的淘汰策略,默认{@link #EVICTION_LRU}
+         * 可以先用{@link com.chw.filedownloader.utils.EvictionPolicyReplay}在实际的访问记录上比较各个策略的命中率
+         * 使用{@link #EVICTION_TINY_LFU}时,准入策略可能拒绝新下载的文件: 缓存已满时,刚下载的文件不会挤出更常用的文件,
+         * 缓存暂时超出限制,download()返回路径之后,下一次下载完成时的淘汰就会把它删除,
+         * {@link #EVICTION_GREEDY_DUAL_SIZE}下的大文件也会很快被淘汰,
+         * 下载后需要一直使用的文件应该通过{@link com.chw.filedownloader.FileDownloader#openCachedFile(String)}打开
+         */
+        public Builder setEvictionPolicy(int evictionPolicy) {
+            mEvictionPolicy = evictionPolicy;
+            return this;
+        }
+
+        /**
+         * 设置缓存目录结构,默认{@link #CACHE_LAYOUT_FLAT},缓存文件很多时建议使用{@link #CACHE_LAYOUT_SHARDED}
+         * 修改后已有的缓存文件在后台逐步移动到新的目录结构中,移动期间缓存照常可用
+         */
+        public Builder setCacheLayout(int cacheLayout) {
+            mCacheLayout = cacheLayout;
+            return this;
+        }
+
+        /**
+         * 设置是否按文件内容去重,默认false
+         * 开启后下载完成的文件按内容摘要保存,不同的url(不同的CDN域名,签名url,不同的查询参数)下载到相同的内容时,
+         * 缓存中只保存一份文件,url对应的条目只保存一个引用,缓存大小只计算一次
+         * 提交到缓存前需要把文件完整读一遍计算摘要
+         */
+        public Builder setContentDedupEnabled(boolean contentDedupEnabled) {
+            mContentDedupEnabled = contentDedupEnabled;
+            return this;
+        }
+
         public FileDownloaderConfig build() {
             return new FileDownloaderConfig(this);
         }
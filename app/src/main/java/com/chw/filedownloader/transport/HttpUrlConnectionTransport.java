@@ -0,0 +1,147 @@
+package com.chw.filedownloader.transport;
+
+import com.chw.filedownloader.utils.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * @author chaihongwei 2026-10-18 19:40
+ * 基于HttpURLConnection的默认传输层
+ * 请求结束后不调用disconnect(),而是读完并关闭响应体,让系统的keep-alive连接池按域名复用连接,
+ * 批量下载小文件时不需要每次都重新建立TCP和TLS连接
+ * 只有响应体剩余太多时才断开连接,避免为了复用连接读取大量无用数据,下载被取消时直接断开连接
+ */
+public final class HttpUrlConnectionTransport implements Transport {
+    /**
+     * 关闭响应时最多读取并丢弃的剩余字节数,超过时断开连接
+     */
+    private static final int MAX_DRAIN_BYTES = 16 * 1024;
+
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+
+    /**
+     * @param connectTimeoutMillis 连接超时时间,0表示不超时
+     * @param readTimeoutMillis    读取超时时间,0表示不超时
+     */
+    public HttpUrlConnectionTransport(int connectTimeoutMillis, int readTimeoutMillis) {
+        this.mConnectTimeoutMillis = connectTimeoutMillis;
+        this.mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) new URL(request.getUrl()).openConnection();
+        try {
+            urlConnection.setConnectTimeout(mConnectTimeoutMillis);
+            urlConnection.setReadTimeout(mReadTimeoutMillis);
+            urlConnection.setUseCaches(false);
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                urlConnection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            return new Response(urlConnection, urlConnection.getResponseCode());
+        } catch (IOException ex) {
+            urlConnection.disconnect();
+            throw ex;
+        }
+    }
+
+    private static final class Response implements TransportResponse {
+        private final HttpURLConnection mUrlConnection;
+        private final int mCode;
+        private InputStream mBody;
+        private boolean mClosed;
+
+        Response(HttpURLConnection urlConnection, int code) {
+            this.mUrlConnection = urlConnection;
+            this.mCode = code;
+        }
+
+        @Override
+        public int getCode() {
+            return mCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mUrlConnection.getHeaderField(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            String contentLength = mUrlConnection.getHeaderField("Content-Length");
+            try {
+                return contentLength != null ? Long.parseLong(contentLength.trim()) : -1;
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
+
+        @Override
+        public synchronized InputStream getBody() throws IOException {
+            if (mBody == null) {
+                //错误响应的响应体在errorStream中,也需要读完才能复用连接
+                InputStream body = mCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                        ? mUrlConnection.getErrorStream() : mUrlConnection.getInputStream();
+                mBody = body != null ? body : new ByteArrayInputStream(new byte[0]);
+            }
+            return mBody;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+
+            boolean reusable = false;
+            try {
+                reusable = drain(getBody());
+            } catch (IOException ex) {
+                //读取失败的连接不能复用
+            } finally {
+                IOUtils.closeQuietly(mBody);
+                if (!reusable) {
+                    mUrlConnection.disconnect();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void abort() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+
+            //先断开连接,关闭响应体时不会再等待剩余的数据
+            mUrlConnection.disconnect();
+            IOUtils.closeQuietly(mBody);
+        }
+
+        /**
+         * 读取并丢弃剩余的响应体
+         *
+         * @return 读到末尾返回true, 剩余太多时返回false
+         */
+        private static boolean drain(InputStream in) throws IOException {
+            byte[] buffer = new byte[4 * 1024];
+            int drained = 0;
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                drained += len;
+                if (drained > MAX_DRAIN_BYTES) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.chw.filedownloader.transport;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author chaihongwei 2026-10-18 19:50
+ * 进程内的传输层,文件内容保存在内存中,不经过网络,用于测试和性能对比
+ * 支持Range,If-Range和If-None-Match,行为与一般的静态文件服务器一致,
+ * 还可以模拟连接提前断开,并记录收到的请求,用于检查断点续传和条件请求的请求头
+ */
+public final class LocalTransport implements Transport {
+    private final Map<String, Resource> mResources = new ConcurrentHashMap<>();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final List<TransportRequest> mRequests = new CopyOnWriteArrayList<>();
+
+    /**
+     * 添加或者替换一个支持分块下载的文件
+     *
+     * @param eTag         ETag,可以为null
+     * @param lastModified Last-Modified,可以为null
+     */
+    public void put(@NonNull String url, @NonNull byte[] data, String eTag, String lastModified) {
+        mResources.put(url, new Resource(data, eTag, lastModified, true, -1));
+    }
+
+    /**
+     * 添加或者替换一个支持分块下载的文件,响应头声明的长度正常,但发送到文件的第truncateAt个字节时连接断开,
+     * 请求的范围在truncateAt之后时不返回任何数据
+     */
+    public void putTruncated(@NonNull String url, @NonNull byte[] data, String eTag, int truncateAt) {
+        mResources.put(url, new Resource(data, eTag, null, true, truncateAt));
+    }
+
+    /**
+     * 添加或者替换一个不支持分块下载的文件,请求时总是返回整个文件
+     */
+    public void putWithoutRange(@NonNull String url, @NonNull byte[] data) {
+        mResources.put(url, new Resource(data, null, null, false, -1));
+    }
+
+    public void remove(@NonNull String url) {
+        mResources.remove(url);
+    }
+
+    /**
+     * 累计收到的请求数
+     */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * 按顺序收到的所有请求
+     */
+    public List<TransportRequest> getRequests() {
+        return new ArrayList<>(mRequests);
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) {
+        mRequestCount.incrementAndGet();
+        mRequests.add(request);
+
+        Resource resource = mResources.get(request.getUrl());
+        if (resource == null) {
+            return new Response(HttpURLConnection.HTTP_NOT_FOUND, new TreeMap<String, String>(), new byte[0], 0, 0,
+                    -1);
+        }
+
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        putIfNotNull(headers, "ETag", resource.mETag);
+        putIfNotNull(headers, "Last-Modified", resource.mLastModified);
+
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null && ifNoneMatch.equals(resource.mETag)) {
+            return new Response(HttpURLConnection.HTTP_NOT_MODIFIED, headers, resource.mData, 0, 0, -1);
+        }
+
+        int length = resource.mData.length;
+        String range = resource.mSupportsRange ? request.getHeader("Range") : null;
+        //If-Range与当前文件不一致时忽略Range,返回整个文件
+        String ifRange = request.getHeader("If-Range");
+        if (range != null && ifRange != null
+                && !ifRange.equals(resource.mETag) && !ifRange.equals(resource.mLastModified)) {
+            range = null;
+        }
+
+        if (range == null || !range.startsWith("bytes=")) {
+            if (resource.mSupportsRange) {
+                headers.put("Accept-Ranges", "bytes");
+            }
+            return new Response(HttpURLConnection.HTTP_OK, headers, resource.mData, 0, length, resource.mTruncateAt);
+        }
+
+        String[] positions = range.substring("bytes=".length()).split("-", -1);
+        long start = Long.parseLong(positions[0].trim());
+        long end = positions.length > 1 && !positions[1].trim().isEmpty()
+                ? Math.min(Long.parseLong(positions[1].trim()), length - 1) : length - 1;
+        if (start >= length || start > end) {
+            headers.put("Content-Range", "bytes */" + length);
+            return new Response(416, headers, resource.mData, 0, 0, -1);
+        }
+
+        headers.put("Accept-Ranges", "bytes");
+        headers.put("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        return new Response(HttpURLConnection.HTTP_PARTIAL, headers, resource.mData, (int) start,
+                (int) (end - start + 1), resource.mTruncateAt);
+    }
+
+    private static void putIfNotNull(Map<String, String> headers, String name, String value) {
+        if (value != null) {
+            headers.put(name, value);
+        }
+    }
+
+    private static final class Resource {
+        private final byte[] mData;
+        private final String mETag;
+        private final String mLastModified;
+        private final boolean mSupportsRange;
+        /**
+         * 连接断开的位置,-1表示不断开
+         */
+        private final int mTruncateAt;
+
+        Resource(byte[] data, String eTag, String lastModified, boolean supportsRange, int truncateAt) {
+            this.mData = data;
+            this.mETag = eTag;
+            this.mLastModified = lastModified;
+            this.mSupportsRange = supportsRange;
+            this.mTruncateAt = truncateAt;
+        }
+    }
+
+    private static final class Response implements TransportResponse {
+        private final int mCode;
+        private final Map<String, String> mHeaders;
+        private final InputStream mBody;
+        private final long mContentLength;
+
+        /**
+         * @param truncateAt 发送到文件的这个位置时连接断开,响应头中的长度不变,-1表示不断开
+         */
+        Response(int code, Map<String, String> headers, byte[] data, int offset, int length, int truncateAt) {
+            this.mCode = code;
+            this.mHeaders = headers;
+            int bodyLength = truncateAt >= 0 ? Math.max(0, Math.min(length, truncateAt - offset)) : length;
+            this.mBody = new ByteArrayInputStream(data, offset, bodyLength);
+            this.mContentLength = length;
+        }
+
+        @Override
+        public int getCode() {
+            return mCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mHeaders.get(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            return mContentLength;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return mBody;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+}
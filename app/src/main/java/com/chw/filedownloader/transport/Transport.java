@@ -0,0 +1,17 @@
+package com.chw.filedownloader.transport;
+
+import java.io.IOException;
+
+/**
+ * @author chaihongwei 2026-10-18 19:30
+ * 下载使用的http传输层,FileDownloader只通过它发起请求,
+ * 默认使用{@link HttpUrlConnectionTransport},测试和性能对比时可以换成{@link LocalTransport}
+ * 实现需要支持多线程同时调用
+ */
+public interface Transport {
+    /**
+     * 发起GET请求,返回时响应头已经读取完成,响应体由调用者读取
+     * 调用者用完后必须关闭返回的response,连接才能被复用
+     */
+    TransportResponse execute(TransportRequest request) throws IOException;
+}
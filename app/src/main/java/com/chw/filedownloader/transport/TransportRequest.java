@@ -0,0 +1,61 @@
+package com.chw.filedownloader.transport;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author chaihongwei 2026-10-18 19:30
+ * 下载请求,只有GET请求,包含url和请求头
+ */
+public final class TransportRequest {
+    private final String mUrl;
+    private final Map<String, String> mHeaders;
+
+    private TransportRequest(Builder builder) {
+        this.mUrl = builder.mUrl;
+        this.mHeaders = Collections.unmodifiableMap(new LinkedHashMap<>(builder.mHeaders));
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * 获取请求头
+     *
+     * @return 没有设置时返回null
+     */
+    public String getHeader(String name) {
+        return mHeaders.get(name);
+    }
+
+    public Map<String, String> getHeaders() {
+        return mHeaders;
+    }
+
+    public static class Builder {
+        private final String mUrl;
+        private final Map<String, String> mHeaders = new LinkedHashMap<>();
+
+        public Builder(@NonNull String url) {
+            this.mUrl = url;
+        }
+
+        /**
+         * 设置请求头,value为null时不设置
+         */
+        public Builder setHeader(String name, String value) {
+            if (value != null) {
+                mHeaders.put(name, value);
+            }
+            return this;
+        }
+
+        public TransportRequest build() {
+            return new TransportRequest(this);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.chw.filedownloader.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * @author chaihongwei 2026-10-18 19:30
+ * 下载响应,关闭后连接才会被放回连接池,响应体没有读完就关闭时连接会被丢弃
+ */
+public interface TransportResponse extends Closeable {
+    int getCode();
+
+    /**
+     * 获取响应头
+     *
+     * @return 没有时返回null
+     */
+    String getHeader(String name);
+
+    /**
+     * 响应体长度
+     *
+     * @return 未知时返回-1
+     */
+    long getContentLength();
+
+    /**
+     * 响应体,多次调用返回同一个流,不需要单独关闭
+     */
+    InputStream getBody() throws IOException;
+
+    @Override
+    void close();
+
+    /**
+     * 不读取剩余的响应体,直接断开连接,用于下载被取消后尽快释放连接,
+     * 避免{@link #close()}为了复用连接读取剩余数据时阻塞
+     */
+    void abort();
+}
@@ -0,0 +1,60 @@
+package com.chw.filedownloader.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * @author chaihongwei 2026-10-18 18:10
+ * 可复用的直接内存缓冲区池,下载大文件时每个传输循环从池中取一个缓冲区,用完归还,
+ * 避免每次下载都重新分配缓冲区,直接内存写入FileChannel时也少一次拷贝
+ * 池中最多保留maxPooledCount个空闲缓冲区,超出的归还时直接丢弃
+ */
+public final class BufferPool {
+    private final int mBufferSize;
+    private final int mMaxPooledCount;
+    private final ArrayDeque<ByteBuffer> mBuffers = new ArrayDeque<>();
+
+    /**
+     * @param bufferSize     每个缓冲区的大小
+     * @param maxPooledCount 最多保留的空闲缓冲区个数
+     */
+    public BufferPool(int bufferSize, int maxPooledCount) {
+        this.mBufferSize = bufferSize;
+        this.mMaxPooledCount = maxPooledCount;
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * 取出一个已经清空的缓冲区,池中没有空闲的缓冲区时新分配一个
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer;
+        synchronized (mBuffers) {
+            buffer = mBuffers.pollFirst();
+        }
+
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(mBufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * 归还缓冲区,归还后调用者不能再使用它
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != mBufferSize) {
+            return;
+        }
+
+        synchronized (mBuffers) {
+            if (mBuffers.size() < mMaxPooledCount) {
+                mBuffers.offerFirst(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.chw.filedownloader.utils;
+
+/**
+ * @author chaihongwei 2026-10-18 23:30
+ * DiskLruCache索引中的key
+ * {@link EncryptUtils#hashKeyForDisk(String)}生成的MD5摘要(32个小写十六进制字符)保存为两个long,
+ * 不再为每个条目保留一个String,用到时再还原,其他格式的key原样保存
+ */
+class CacheKey {
+    private static final int DIGEST_KEY_LENGTH = 32;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final long mHigh;
+    private final long mLow;
+    /**
+     * 不是摘要格式的key,摘要格式时为null
+     */
+    private final String mRawKey;
+
+    CacheKey(String key) {
+        if (isDigest(key)) {
+            mHigh = parseHex(key, 0);
+            mLow = parseHex(key, DIGEST_KEY_LENGTH / 2);
+            mRawKey = null;
+        } else {
+            mHigh = 0;
+            mLow = 0;
+            mRawKey = key;
+        }
+    }
+
+    /**
+     * 还原出原来的key,摘要格式的key每次调用都会新建String
+     */
+    final String getKey() {
+        return mRawKey != null ? mRawKey : formatDigest(mHigh, mLow);
+    }
+
+    @Override
+    public final boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CacheKey)) {
+            return false;
+        }
+        CacheKey other = (CacheKey) o;
+        if (mRawKey != null) {
+            return mRawKey.equals(other.mRawKey);
+        }
+        return other.mRawKey == null && mHigh == other.mHigh && mLow == other.mLow;
+    }
+
+    @Override
+    public final int hashCode() {
+        if (mRawKey != null) {
+            return mRawKey.hashCode();
+        }
+        long hash = mHigh ^ mLow;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return getKey();
+    }
+
+    /**
+     * key是否是32个小写十六进制字符,只有这种格式才能从两个long原样还原
+     */
+    static boolean isDigest(String key) {
+        if (key.length() != DIGEST_KEY_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < DIGEST_KEY_LENGTH; i++) {
+            char c = key.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 把key中从offset开始的16个十六进制字符解析为long
+     */
+    static long parseHex(String key, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + DIGEST_KEY_LENGTH / 2; i++) {
+            char c = key.charAt(i);
+            value = (value << 4) | (c <= '9' ? c - '0' : c - 'a' + 10);
+        }
+        return value;
+    }
+
+    static String formatDigest(long high, long low) {
+        char[] chars = new char[DIGEST_KEY_LENGTH];
+        for (int i = DIGEST_KEY_LENGTH / 2 - 1; i >= 0; i--) {
+            chars[i] = HEX_DIGITS[(int) (high & 0xf)];
+            chars[i + DIGEST_KEY_LENGTH / 2] = HEX_DIGITS[(int) (low & 0xf)];
+            high >>>= 4;
+            low >>>= 4;
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,275 @@
+package com.chw.filedownloader.utils;
+
+/**
+ * @author chaihongwei 2026-10-18 23:40
+ * 只用基本类型数组实现的按访问顺序排列的key集合,代替LinkedHashMap<String, Long>
+ * 摘要格式的key保存为两个long({@link CacheKey}),线性探测的开放寻址,删除时向前移动后面的元素,不留墓碑,
+ * 访问顺序是串在槽位上的双向链表,每个key只占几十个字节,不为每个key创建对象
+ * 不是线程安全的,由调用方加锁
+ */
+final class CompactLruIndex {
+    /**
+     * 链表的结束
+     */
+    static final int NIL = -1;
+    /**
+     * mPrev中的这个值表示空槽位
+     */
+    private static final int EMPTY = -2;
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * 每个槽位两个long,摘要格式的key的高64位和低64位
+     */
+    private long[] mKeys;
+    /**
+     * 不是摘要格式的key,摘要格式时为null
+     */
+    private String[] mRawKeys;
+    /**
+     * 链表中前一个(更早访问的)和后一个(更近访问的)槽位
+     */
+    private int[] mPrev;
+    private int[] mNext;
+    private int mMask;
+    private int mSize;
+    private int mEldest = NIL;
+    private int mNewest = NIL;
+
+    CompactLruIndex() {
+        allocate(MIN_CAPACITY);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * 把key移动到最近访问的位置
+     *
+     * @return key不存在时返回false
+     */
+    boolean touch(String key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return false;
+        }
+        moveToNewest(slot);
+        return true;
+    }
+
+    /**
+     * 添加key到最近访问的位置,已经存在时只移动位置
+     *
+     * @return 是否是新添加的key
+     */
+    boolean add(String key) {
+        int slot = find(key);
+        if (slot >= 0) {
+            moveToNewest(slot);
+            return false;
+        }
+
+        if ((mSize + 1) * 4 > (mMask + 1) * 3) {
+            grow();
+            slot = find(key);
+        }
+        slot = ~slot;
+        if (CacheKey.isDigest(key)) {
+            mKeys[slot * 2] = CacheKey.parseHex(key, 0);
+            mKeys[slot * 2 + 1] = CacheKey.parseHex(key, 16);
+        } else {
+            mRawKeys[slot] = key;
+        }
+        linkNewest(slot);
+        mSize++;
+        return true;
+    }
+
+    /**
+     * @return key是否存在
+     */
+    boolean remove(String key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return false;
+        }
+        removeSlot(slot);
+        return true;
+    }
+
+    /**
+     * 最久没有访问的key所在的槽位,没有时返回{@link #NIL}
+     */
+    int eldest() {
+        return mEldest;
+    }
+
+    /**
+     * 比slot中的key晚访问的下一个槽位,没有时返回{@link #NIL}
+     */
+    int newer(int slot) {
+        return mNext[slot];
+    }
+
+    /**
+     * 槽位中的key,摘要格式的key每次调用都会新建String
+     */
+    String keyAt(int slot) {
+        String rawKey = mRawKeys[slot];
+        return rawKey != null ? rawKey : CacheKey.formatDigest(mKeys[slot * 2], mKeys[slot * 2 + 1]);
+    }
+
+    /**
+     * @return key所在的槽位, 不存在时返回~(可以插入的空槽位)
+     */
+    private int find(String key) {
+        long high = 0;
+        long low = 0;
+        String rawKey = key;
+        if (CacheKey.isDigest(key)) {
+            high = CacheKey.parseHex(key, 0);
+            low = CacheKey.parseHex(key, 16);
+            rawKey = null;
+        }
+
+        int slot = hash(high, low, rawKey) & mMask;
+        while (mPrev[slot] != EMPTY) {
+            if (rawKey != null ? rawKey.equals(mRawKeys[slot])
+                    : mRawKeys[slot] == null && mKeys[slot * 2] == high && mKeys[slot * 2 + 1] == low) {
+                return slot;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return ~slot;
+    }
+
+    private int hashAt(int slot) {
+        return hash(mKeys[slot * 2], mKeys[slot * 2 + 1], mRawKeys[slot]);
+    }
+
+    private static int hash(long high, long low, String rawKey) {
+        long hash = rawKey != null ? rawKey.hashCode() : high ^ low;
+        hash *= 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32);
+    }
+
+    /**
+     * 删除槽位中的key,把探测链上后面的key向前移动填补空位
+     */
+    private void removeSlot(int slot) {
+        unlink(slot);
+        mSize--;
+
+        int hole = slot;
+        int i = slot;
+        while (true) {
+            i = (i + 1) & mMask;
+            if (mPrev[i] == EMPTY) {
+                break;
+            }
+            int home = hashAt(i) & mMask;
+            //空位在i的理想槽位和i之间时,i可以前移到空位
+            if (((i - home) & mMask) >= ((i - hole) & mMask)) {
+                moveSlot(i, hole);
+                hole = i;
+            }
+        }
+        mPrev[hole] = EMPTY;
+        mNext[hole] = NIL;
+        mRawKeys[hole] = null;
+    }
+
+    private void moveSlot(int from, int to) {
+        mKeys[to * 2] = mKeys[from * 2];
+        mKeys[to * 2 + 1] = mKeys[from * 2 + 1];
+        mRawKeys[to] = mRawKeys[from];
+        int prev = mPrev[from];
+        int next = mNext[from];
+        mPrev[to] = prev;
+        mNext[to] = next;
+        if (prev != NIL) {
+            mNext[prev] = to;
+        } else {
+            mEldest = to;
+        }
+        if (next != NIL) {
+            mPrev[next] = to;
+        } else {
+            mNewest = to;
+        }
+    }
+
+    private void moveToNewest(int slot) {
+        if (slot != mNewest) {
+            unlink(slot);
+            linkNewest(slot);
+        }
+    }
+
+    private void linkNewest(int slot) {
+        mPrev[slot] = mNewest;
+        mNext[slot] = NIL;
+        if (mNewest != NIL) {
+            mNext[mNewest] = slot;
+        } else {
+            mEldest = slot;
+        }
+        mNewest = slot;
+    }
+
+    private void unlink(int slot) {
+        int prev = mPrev[slot];
+        int next = mNext[slot];
+        if (prev != NIL) {
+            mNext[prev] = next;
+        } else {
+            mEldest = next;
+        }
+        if (next != NIL) {
+            mPrev[next] = prev;
+        } else {
+            mNewest = prev;
+        }
+    }
+
+    /**
+     * 容量翻倍,按访问顺序重新插入,保持原来的顺序
+     */
+    private void grow() {
+        long[] keys = mKeys;
+        String[] rawKeys = mRawKeys;
+        int[] next = mNext;
+        int slot = mEldest;
+        allocate((mMask + 1) * 2);
+
+        while (slot != NIL) {
+            long high = keys[slot * 2];
+            long low = keys[slot * 2 + 1];
+            String rawKey = rawKeys[slot];
+            int target = hash(high, low, rawKey) & mMask;
+            while (mPrev[target] != EMPTY) {
+                target = (target + 1) & mMask;
+            }
+            mKeys[target * 2] = high;
+            mKeys[target * 2 + 1] = low;
+            mRawKeys[target] = rawKey;
+            linkNewest(target);
+            slot = next[slot];
+        }
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity * 2];
+        mRawKeys = new String[capacity];
+        mPrev = new int[capacity];
+        mNext = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mPrev[i] = EMPTY;
+            mNext[i] = NIL;
+        }
+        mMask = capacity - 1;
+        mEldest = NIL;
+        mNewest = NIL;
+    }
+}
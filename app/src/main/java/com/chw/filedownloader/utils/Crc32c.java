@@ -0,0 +1,75 @@
+package com.chw.filedownloader.utils;
+
+import java.util.zip.Checksum;
+
+/**
+ * @author chaihongwei 2026-10-18 23:50
+ * CRC32C(Castagnoli)校验和,java.util.zip.CRC32C从Android 8.0才有,这里用查表法自己实现
+ * 每次处理8个字节(slicing-by-8),结果与java.util.zip.CRC32C一致
+ */
+public final class Crc32c implements Checksum {
+    /**
+     * 反转后的Castagnoli多项式
+     */
+    private static final int POLYNOMIAL = 0x82F63B78;
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLES[0][i] = crc;
+        }
+        for (int i = 0; i < 256; i++) {
+            for (int t = 1; t < 8; t++) {
+                int previous = TABLES[t - 1][i];
+                TABLES[t][i] = (previous >>> 8) ^ TABLES[0][previous & 0xff];
+            }
+        }
+    }
+
+    private int mCrc = 0xffffffff;
+
+    @Override
+    public void update(int b) {
+        mCrc = (mCrc >>> 8) ^ TABLES[0][(mCrc ^ b) & 0xff];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int crc = mCrc;
+        int end = off + len;
+        int[] t0 = TABLES[0];
+        int[] t1 = TABLES[1];
+        int[] t2 = TABLES[2];
+        int[] t3 = TABLES[3];
+        int[] t4 = TABLES[4];
+        int[] t5 = TABLES[5];
+        int[] t6 = TABLES[6];
+        int[] t7 = TABLES[7];
+        while (end - off >= 8) {
+            int low = crc ^ ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8
+                    | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24);
+            crc = t7[low & 0xff] ^ t6[(low >>> 8) & 0xff] ^ t5[(low >>> 16) & 0xff] ^ t4[low >>> 24]
+                    ^ t3[b[off + 4] & 0xff] ^ t2[b[off + 5] & 0xff]
+                    ^ t1[b[off + 6] & 0xff] ^ t0[b[off + 7] & 0xff];
+            off += 8;
+        }
+        while (off < end) {
+            crc = (crc >>> 8) ^ t0[(crc ^ b[off++]) & 0xff];
+        }
+        mCrc = crc;
+    }
+
+    @Override
+    public long getValue() {
+        return ~mCrc & 0xffffffffL;
+    }
+
+    @Override
+    public void reset() {
+        mCrc = 0xffffffff;
+    }
+}
@@ -17,35 +17,41 @@
 package com.chw.filedownloader.utils;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
-import java.lang.reflect.Array;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  ******************************************************************************
@@ -67,7 +73,9 @@ import java.util.concurrent.TimeUnit;
  *
  * <p>This cache limits the number of bytes that it will store on the
  * filesystem. When the number of stored bytes exceeds the limit, the cache will
- * remove entries in the background until the limit is satisfied. The limit is
+ * remove entries in the background until the limit is satisfied. The order in
+ * which entries are removed is decided by an {@link EvictionPolicy}, least
+ * recently used first unless another policy is given to {@link #open}. The limit is
  * not strict: the cache may temporarily exceed it while waiting for files to be
  * deleted. The limit does not include filesystem overhead or the cache
  * journal so space-sensitive applications should set a conservative limit.
@@ -91,6 +99,13 @@ import java.util.concurrent.TimeUnit;
  * observe the value at the time that {@link #get} was called. Updates and
  * removals after the call do not impact ongoing reads.
  *
+ * <p>Reads do not take the cache lock. Entries live in a concurrent map and
+ * {@link #get} validates the files it opened against the entry's commit
+ * version, retrying if a commit raced with it. Edits, commits, removals and
+ * evictions are still serialized on the cache, and every journal record goes
+ * through a single journal writer guarded by its own lock, so a cache hit only
+ * waits for the journal append, never for a commit or an eviction.
+ *
  * <p>This class is tolerant of some I/O errors. If files are missing from the
  * filesystem, the corresponding entries will be dropped from the cache. If
  * an error occurs while writing a cache value, the edit will fail silently.
@@ -100,6 +115,13 @@ import java.util.concurrent.TimeUnit;
 public final class DiskLruCache implements Closeable {
     static final String JOURNAL_FILE = "journal";
     static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String LAYOUT_FILE = "layout";
+    static final String LAYOUT_FILE_TMP = "layout.tmp";
+    /** Contents of the layout file. Caches without one are flat. */
+    static final String LAYOUT_FLAT = "flat";
+    static final String LAYOUT_SHARDED = "sharded";
+    static final String LAYOUT_MIGRATING = "migrating";
+    /** Header and operations of the text journal written by older versions. */
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION_1 = "1";
     static final long ANY_SEQUENCE_NUMBER = -1;
@@ -110,10 +132,17 @@ public final class DiskLruCache implements Closeable {
 
     private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final int IO_BUFFER_SIZE = 8 * 1024;
+    /**
+     * Once the size exceeds maxSize, evict this share of maxSize below it in
+     * one batch so that the following commits don't each evict again.
+     */
+    private static final int EVICTION_BATCH_PERCENT = 10;
+    /** Entries moved to the new layout per acquisition of the cache lock. */
+    private static final int MIGRATION_BATCH_SIZE = 256;
 
     /*
-     * This cache uses a journal file named "journal". A typical journal file
-     * looks like this:
+     * This cache uses a journal file named "journal". Older versions wrote it
+     * as text; a typical text journal file looks like this:
      *     libcore.io.DiskLruCache
      *     1
      *     100
@@ -149,19 +178,64 @@ public final class DiskLruCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * Compaction doesn't hold the cache lock while it writes. It snapshots the
+     * index under the lock and notes the journal's length at that moment,
+     * writes the snapshot to "journal.tmp", and copies over whatever was
+     * appended to the journal after that length. Only the final piece of
+     * that copy and the rename happen under the journal lock.
+     *
+     * The journal is now written in the binary format described in
+     * DiskLruJournal: the same four operations, each as a fixed-width record
+     * holding the 128-bit key digest, the lengths for CLEAN and a CRC32.
+     * Opening a cache with a text journal reads it once and rewrites it in the
+     * binary format. A record with a bad checksum or a truncated tail ends the
+     * journal; everything before it is kept and the journal is rewritten.
+     *
+     * In the flat layout the files of every entry sit directly in the cache
+     * directory. The sharded layout puts them two directories down instead,
+     * named by hex digits of the key's hash ("3/a/<key>.0"), so no directory
+     * holds more than a small share of the entries. A file named "layout"
+     * records which layout the entries are in, or "migrating" while they are
+     * being moved from one layout to the other; caches written before it
+     * existed are flat. Opening a cache with a different layout moves the
+     * entries in the background, a batch at a time, and a cache closed
+     * before that finishes resumes moving them when it is next opened.
      */
 
     private final File directory;
     private final File journalFile;
     private final File journalFileTmp;
+    private final File layoutFile;
+    private final boolean shardedLayout;
     private final int appVersion;
     private final long maxSize;
+    private final long lowWatermark;
     private final int valueCount;
+    private final EvictionPolicy evictionPolicy;
     private long size = 0;
-    private Writer journalWriter;
-    private final LinkedHashMap<String, Entry> lruEntries
-            = new LinkedHashMap<String, Entry>(0, 0.75f, true);
-    private int redundantOpCount;
+    /**
+     * Appends are guarded by journalLock and only copy the record into memory;
+     * journalExecutor writes them to the file in batches. Replaced under
+     * journalLock when the journal is compacted.
+     */
+    private volatile DiskLruJournal.Writer journalWriter;
+    private final Object journalLock = new Object();
+    /**
+     * Entries are looked up without locking. Structural changes happen while
+     * holding the cache lock. LRU order is kept by {@link Entry#accessOrder}
+     * rather than by the map. Each entry is its own key: digest keys are kept
+     * as two longs instead of a string, and lookups go through a CacheKey.
+     */
+    private final ConcurrentHashMap<CacheKey, Entry> lruEntries
+            = new ConcurrentHashMap<CacheKey, Entry>();
+    private final AtomicLong accessCounter = new AtomicLong();
+    private final AtomicInteger redundantOpCount = new AtomicInteger();
+    /**
+     * Keys evicted from the index whose files have not been deleted yet.
+     * Guarded by the cache lock; editing such a key waits for the deletion.
+     */
+    private final Set<String> evictingKeys = new HashSet<String>();
 
     /**
      * To differentiate between old and current snapshots, each entry is given
@@ -170,24 +244,6 @@ public final class DiskLruCache implements Closeable {
      */
     private long nextSequenceNumber = 0;
 
-    /* From java.util.Arrays */
-    @SuppressWarnings("unchecked")
-    private static <T> T[] copyOfRange(T[] original, int start, int end) {
-        final int originalLength = original.length; // For exception priority compatibility.
-        if (start > end) {
-            throw new IllegalArgumentException();
-        }
-        if (start < 0 || start > originalLength) {
-            throw new ArrayIndexOutOfBoundsException();
-        }
-        final int resultLength = end - start;
-        final int copyLength = Math.min(resultLength, originalLength - start);
-        final T[] result = (T[]) Array
-                .newInstance(original.getClass().getComponentType(), resultLength);
-        System.arraycopy(original, start, result, 0, copyLength);
-        return result;
-    }
-
     /**
      * Returns the remainder of 'reader' as a string, closing it when done.
      */
@@ -269,30 +325,57 @@ public final class DiskLruCache implements Closeable {
     /** This cache uses a single background thread to evict entries. */
     private final ExecutorService executorService = new ThreadPoolExecutor(0, 1,
             60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    /** Group-commits journal records in the background. */
+    private final ExecutorService journalExecutor = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override
         public Void call() throws Exception {
+            List<Entry> evicted;
+            boolean compact;
             synchronized (DiskLruCache.this) {
                 if (journalWriter == null) {
                     return null; // closed
                 }
-                trimToSize();
-                if (journalRebuildRequired()) {
-                    rebuildJournal();
-                    redundantOpCount = 0;
-                }
+                evicted = trimToSize();
+                compact = journalRebuildRequired();
             }
+            deleteEvicted(evicted);
+            if (compact) {
+                compactJournal();
+            }
+            return null;
+        }
+    };
+    private final Callable<Void> migrationCallable = new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+            migrateLayout();
             return null;
         }
     };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+            EvictionPolicy evictionPolicy, boolean shardedLayout) {
         this.directory = directory;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        this.layoutFile = new File(directory, LAYOUT_FILE);
+        this.shardedLayout = shardedLayout;
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        this.lowWatermark = lowWatermark(maxSize);
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * Returns the size that eviction trims down to once the size exceeds
+     * {@code maxSize}. {@link EvictionPolicyReplay} uses it too, so that the
+     * replay evicts in the same batches as the cache.
+     */
+    static long lowWatermark(long maxSize) {
+        return maxSize - maxSize / 100 * EVICTION_BATCH_PERCENT;
     }
 
     /**
@@ -307,6 +390,34 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, new LruEvictionPolicy());
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there, and evicts entries in the order chosen by {@code evictionPolicy}.
+     *
+     * @param evictionPolicy a new policy instance; it must not be shared with
+     *     another cache.
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            EvictionPolicy evictionPolicy) throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, evictionPolicy, false);
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there, and stores the files of its entries in the flat or the sharded
+     * layout. Entries stored in the other layout by an earlier open are moved
+     * in the background while the cache is in use.
+     *
+     * @param shardedLayout true to spread the files over two levels of
+     *     subdirectories, for caches holding tens of thousands of entries.
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            EvictionPolicy evictionPolicy, boolean shardedLayout) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
@@ -315,13 +426,32 @@ public final class DiskLruCache implements Closeable {
         }
 
         // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize,
+                evictionPolicy, shardedLayout);
         if (cache.journalFile.exists()) {
             try {
-                cache.readJournal();
+                boolean complete;
+                int journalValueCount = valueCount;
+                if (DiskLruJournal.isBinary(cache.journalFile)) {
+                    complete = cache.readJournal();
+                } else {
+                    // migrate a journal written by an older version
+                    journalValueCount = cache.readTextJournal();
+                    complete = false;
+                }
+                boolean migrate = cache.readLayout();
+                cache.createMissingValues(journalValueCount);
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+                if (complete) {
+                    cache.journalWriter = new DiskLruJournal.Writer(cache.journalFile, true,
+                            appVersion, valueCount, cache.journalExecutor);
+                } else {
+                    cache.rebuildJournal();
+                }
+                cache.initEvictionPolicy();
+                if (migrate) {
+                    cache.executorService.submit(cache.migrationCallable);
+                }
                 return cache;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
@@ -332,12 +462,59 @@ public final class DiskLruCache implements Closeable {
 
         // create a new empty cache
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, evictionPolicy,
+                shardedLayout);
         cache.rebuildJournal();
+        cache.writeLayout(shardedLayout ? LAYOUT_SHARDED : LAYOUT_FLAT);
         return cache;
     }
 
-    private void readJournal() throws IOException {
+    /**
+     * Reads the binary journal into {@code lruEntries}.
+     *
+     * @return false if the journal ended with a corrupt or truncated record.
+     */
+    private boolean readJournal() throws IOException {
+        return DiskLruJournal.read(journalFile, appVersion, valueCount, new DiskLruJournal.Visitor() {
+            @Override
+            public void onRecord(int op, String key, long[] lengths) {
+                CacheKey cacheKey = new CacheKey(key);
+                if (op == DiskLruJournal.OP_REMOVE) {
+                    lruEntries.remove(cacheKey);
+                    return;
+                }
+
+                Entry entry = lruEntries.get(cacheKey);
+                if (op == DiskLruJournal.OP_READ && entry == null) {
+                    // a lock-free read may land in the journal after its entry's REMOVE
+                    return;
+                }
+                if (entry == null) {
+                    entry = new Entry(key);
+                    lruEntries.put(entry, entry);
+                }
+                entry.accessOrder = accessCounter.incrementAndGet();
+
+                if (op == DiskLruJournal.OP_CLEAN) {
+                    entry.readable = true;
+                    entry.currentEditor = null;
+                    System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+                } else if (op == DiskLruJournal.OP_DIRTY) {
+                    entry.currentEditor = new Editor(entry);
+                }
+                // READ: this work was already done by updating accessOrder
+            }
+        });
+    }
+
+    /**
+     * Reads a journal in the text format written by older versions. The
+     * journal may have fewer values per entry than this cache; the missing
+     * values are empty.
+     *
+     * @return the number of values per entry in the journal.
+     */
+    private int readTextJournal() throws IOException {
         InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
         try {
             String magic = readAsciiLine(in);
@@ -345,10 +522,12 @@ public final class DiskLruCache implements Closeable {
             String appVersionString = readAsciiLine(in);
             String valueCountString = readAsciiLine(in);
             String blank = readAsciiLine(in);
+            int journalValueCount = parseValueCount(valueCountString);
             if (!MAGIC.equals(magic)
                     || !VERSION_1.equals(version)
                     || !Integer.toString(appVersion).equals(appVersionString)
-                    || !Integer.toString(valueCount).equals(valueCountString)
+                    || journalValueCount <= 0
+                    || journalValueCount > valueCount
                     || !"".equals(blank)) {
                 throw new IOException("unexpected journal header: ["
                         + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
@@ -356,47 +535,145 @@ public final class DiskLruCache implements Closeable {
 
             while (true) {
                 try {
-                    readJournalLine(readAsciiLine(in));
+                    readTextJournalLine(readAsciiLine(in), journalValueCount);
                 } catch (EOFException endOfJournal) {
                     break;
                 }
             }
+            return journalValueCount;
         } finally {
             closeQuietly(in);
         }
     }
 
-    private void readJournalLine(String line) throws IOException {
+    private static int parseValueCount(String valueCountString) {
+        try {
+            return Integer.parseInt(valueCountString);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void readTextJournalLine(String line, int journalValueCount) throws IOException {
         String[] parts = line.split(" ");
         if (parts.length < 2) {
             throw new IOException("unexpected journal line: " + line);
         }
 
         String key = parts[1];
+        CacheKey cacheKey = new CacheKey(key);
         if (parts[0].equals(REMOVE) && parts.length == 2) {
-            lruEntries.remove(key);
+            lruEntries.remove(cacheKey);
             return;
         }
 
-        Entry entry = lruEntries.get(key);
+        Entry entry = lruEntries.get(cacheKey);
         if (entry == null) {
             entry = new Entry(key);
-            lruEntries.put(key, entry);
+            lruEntries.put(entry, entry);
         }
+        entry.accessOrder = accessCounter.incrementAndGet();
 
-        if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
+        if (parts[0].equals(CLEAN) && parts.length == 2 + journalValueCount) {
             entry.readable = true;
             entry.currentEditor = null;
-            entry.setLengths(copyOfRange(parts, 2, parts.length));
+            String[] lengths = new String[valueCount];
+            Arrays.fill(lengths, "0");
+            System.arraycopy(parts, 2, lengths, 0, journalValueCount);
+            entry.setLengths(lengths);
         } else if (parts[0].equals(DIRTY) && parts.length == 2) {
             entry.currentEditor = new Editor(entry);
         } else if (parts[0].equals(READ) && parts.length == 2) {
-            // this work was already done by calling lruEntries.get()
+            // this work was already done by updating accessOrder
         } else {
             throw new IOException("unexpected journal line: " + line);
         }
     }
 
+    /**
+     * Tells the eviction policy about the entries read from the journal, least
+     * recently used first.
+     */
+    private void initEvictionPolicy() {
+        for (Entry entry : entriesInAccessOrder()) {
+            evictionPolicy.onWrite(entry.getKey(), entry.getTotalLength());
+        }
+    }
+
+    /**
+     * Finds out which layout the files of the entries read from the journal
+     * are in.
+     *
+     * @return true if some entries have to be moved to this cache's layout.
+     */
+    private boolean readLayout() throws IOException {
+        String layout = LAYOUT_FLAT;
+        if (layoutFile.exists()) {
+            layout = readFully(new InputStreamReader(new FileInputStream(layoutFile), UTF_8)).trim();
+        }
+
+        boolean migrate = false;
+        for (Entry entry : lruEntries.values()) {
+            if (LAYOUT_FLAT.equals(layout)) {
+                entry.sharded = false;
+            } else if (LAYOUT_SHARDED.equals(layout)) {
+                entry.sharded = true;
+            } else {
+                // an earlier migration was interrupted, look where the files are
+                String key = entry.getKey();
+                entry.sharded = !new File(entryDirectory(key, false), key + ".0").exists()
+                        && (shardedLayout || new File(entryDirectory(key, true), key + ".0").exists());
+            }
+            migrate |= entry.sharded != shardedLayout;
+        }
+
+        if (migrate) {
+            if (!LAYOUT_MIGRATING.equals(layout)) {
+                writeLayout(LAYOUT_MIGRATING);
+            }
+        } else if (!layout.equals(shardedLayout ? LAYOUT_SHARDED : LAYOUT_FLAT)) {
+            writeLayout(shardedLayout ? LAYOUT_SHARDED : LAYOUT_FLAT);
+        }
+        return migrate;
+    }
+
+    /**
+     * Replaces the contents of the layout file.
+     */
+    private void writeLayout(String layout) throws IOException {
+        File layoutFileTmp = new File(directory, LAYOUT_FILE_TMP);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(layoutFileTmp), UTF_8);
+        try {
+            writer.write(layout);
+        } finally {
+            closeQuietly(writer);
+        }
+        if (!layoutFileTmp.renameTo(layoutFile)) {
+            throw new IOException("failed to rename " + layoutFileTmp + " to " + layoutFile);
+        }
+    }
+
+    /**
+     * Creates empty files for the values that entries read from a journal with
+     * fewer values per entry don't have yet.
+     */
+    private void createMissingValues(int journalValueCount) throws IOException {
+        if (journalValueCount == valueCount) {
+            return;
+        }
+        for (Entry entry : lruEntries.values()) {
+            if (entry.currentEditor != null) {
+                continue; // deleted by processJournal()
+            }
+            for (int i = journalValueCount; i < valueCount; i++) {
+                File file = entry.getCleanFile(i);
+                if (!file.exists() && !file.createNewFile()) {
+                    throw new IOException("failed to create " + file);
+                }
+            }
+        }
+    }
+
     /**
      * Computes the initial size and collects garbage as a part of opening the
      * cache. Dirty entries are assumed to be inconsistent and will be deleted.
@@ -425,32 +702,156 @@ public final class DiskLruCache implements Closeable {
      * current journal if it exists.
      */
     private synchronized void rebuildJournal() throws IOException {
-        if (journalWriter != null) {
-            journalWriter.close();
+        synchronized (journalLock) {
+            if (journalWriter != null) {
+                journalWriter.close();
+            }
+
+            DiskLruJournal.Writer writer = new DiskLruJournal.Writer(journalFileTmp, false,
+                    appVersion, valueCount, null);
+            try {
+                for (Entry entry : entriesInAccessOrder()) {
+                    if (entry.currentEditor != null) {
+                        writer.writeDirty(entry.getKey());
+                    } else {
+                        writer.writeClean(entry.getKey(), entry.lengths);
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+
+            journalFileTmp.renameTo(journalFile);
+            journalWriter = new DiskLruJournal.Writer(journalFile, true, appVersion, valueCount,
+                    journalExecutor);
         }
+    }
 
-        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
-        writer.write(MAGIC);
-        writer.write("\n");
-        writer.write(VERSION_1);
-        writer.write("\n");
-        writer.write(Integer.toString(appVersion));
-        writer.write("\n");
-        writer.write(Integer.toString(valueCount));
-        writer.write("\n");
-        writer.write("\n");
+    /**
+     * Rewrites the journal without redundant records while readers and
+     * editors keep running. Only called on the cleanup executor, so at most
+     * one compaction runs at a time.
+     */
+    private void compactJournal() throws IOException {
+        List<JournalSnapshot> snapshot;
+        DiskLruJournal.Writer live;
+        long copied;
+        synchronized (this) {
+            if (journalWriter == null) {
+                return; // closed
+            }
+            snapshot = new ArrayList<JournalSnapshot>(lruEntries.size());
+            for (Entry entry : lruEntries.values()) {
+                // the snapshot is written in access order, so pending accesses are kept
+                entry.accessPending = false;
+                snapshot.add(new JournalSnapshot(entry, entry.accessOrder,
+                        entry.currentEditor != null ? null : entry.lengths.clone()));
+            }
+            // records appended after this point are copied over verbatim
+            synchronized (journalLock) {
+                live = journalWriter;
+                copied = live.getFileLength();
+            }
+            redundantOpCount.set(0);
+        }
 
-        for (Entry entry : lruEntries.values()) {
-            if (entry.currentEditor != null) {
-                writer.write(DIRTY + ' ' + entry.key + '\n');
-            } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+        Collections.sort(snapshot);
+        DiskLruJournal.Writer writer = new DiskLruJournal.Writer(journalFileTmp, false,
+                appVersion, valueCount, null);
+        try {
+            for (JournalSnapshot record : snapshot) {
+                if (record.lengths == null) {
+                    writer.writeDirty(record.key.getKey());
+                } else {
+                    writer.writeClean(record.key.getKey(), record.lengths);
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        copied = copyJournalRange(copied, live.getWrittenFileLength());
+
+        synchronized (journalLock) {
+            if (journalWriter != live) {
+                deleteIfExists(journalFileTmp); // closed meanwhile
+                return;
+            }
+            live.flush();
+            copyJournalRange(copied, live.getFileLength());
+            live.close();
+            if (!journalFileTmp.renameTo(journalFile)) {
+                deleteIfExists(journalFileTmp);
+            }
+            journalWriter = new DiskLruJournal.Writer(journalFile, true, appVersion, valueCount,
+                    journalExecutor);
+        }
+    }
+
+    /**
+     * Appends the bytes of the journal between {@code start} and {@code end}
+     * to "journal.tmp".
+     *
+     * @return {@code end}
+     */
+    private long copyJournalRange(long start, long end) throws IOException {
+        if (end <= start) {
+            return start;
+        }
+        FileInputStream in = new FileInputStream(journalFile);
+        FileOutputStream out = new FileOutputStream(journalFileTmp, true);
+        try {
+            FileChannel source = in.getChannel();
+            FileChannel target = out.getChannel();
+            long position = start;
+            while (position < end) {
+                long count = source.transferTo(position, end - position, target);
+                if (count <= 0) {
+                    throw new IOException("journal is shorter than expected: " + position + "/" + end);
+                }
+                position += count;
             }
+            return end;
+        } finally {
+            closeQuietly(out);
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * The state of one entry when a compaction started.
+     */
+    private static final class JournalSnapshot implements Comparable<JournalSnapshot> {
+        private final CacheKey key;
+        private final long accessOrder;
+        /** Null if the entry was being edited. */
+        private final long[] lengths;
+
+        private JournalSnapshot(CacheKey key, long accessOrder, long[] lengths) {
+            this.key = key;
+            this.accessOrder = accessOrder;
+            this.lengths = lengths;
+        }
+
+        @Override
+        public int compareTo(JournalSnapshot other) {
+            return accessOrder < other.accessOrder ? -1 : (accessOrder == other.accessOrder ? 0 : 1);
         }
+    }
 
-        writer.close();
-        journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+    /**
+     * Returns a copy of the entries ordered from least to most recently used.
+     */
+    private List<Entry> entriesInAccessOrder() {
+        List<Entry> entries = new ArrayList<Entry>(lruEntries.values());
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                long x = a.accessOrder;
+                long y = b.accessOrder;
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        return entries;
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -471,71 +872,203 @@ public final class DiskLruCache implements Closeable {
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
      */
-    public synchronized Snapshot get(String key) throws IOException {
+    public Snapshot get(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
+        Entry entry = lruEntries.get(new CacheKey(key));
         if (entry == null) {
             return null;
         }
 
-        if (!entry.readable) {
-            return null;
-        }
-
-        /*
-         * Open all streams eagerly to guarantee that we see a single published
-         * snapshot. If we opened streams lazily then the streams could come
-         * from different edits.
-         */
         InputStream[] ins = new InputStream[valueCount];
-        try {
-            for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+        long sequenceNumber;
+        while (true) {
+            if (!entry.readable) {
+                return null;
             }
-        } catch (FileNotFoundException e) {
-            // a file must have been deleted manually!
-            return null;
+            int commitVersion = entry.commitVersion;
+            if ((commitVersion & 1) != 0) {
+                // a commit is renaming this entry's files right now
+                Thread.yield();
+                continue;
+            }
+            sequenceNumber = entry.sequenceNumber;
+
+            /*
+             * Open all streams eagerly to guarantee that we see a single published
+             * snapshot. If we opened streams lazily then the streams could come
+             * from different edits.
+             */
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    ins[i] = new FileInputStream(entry.getCleanFile(i));
+                }
+            } catch (FileNotFoundException e) {
+                closeAll(ins);
+                if (entry.commitVersion != commitVersion && entry.readable) {
+                    continue; // the files were moved to the other layout
+                }
+                // a file must have been deleted manually, or the entry was just removed
+                return null;
+            }
+
+            if (entry.commitVersion == commitVersion) {
+                break;
+            }
+            // a commit or removal raced with us; the streams may mix two edits
+            closeAll(ins);
         }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
+        entry.accessOrder = accessCounter.incrementAndGet();
+        evictionPolicy.onAccess(key);
+        entry.accessPending = false;
+        synchronized (journalLock) {
+            if (journalWriter == null) {
+                closeAll(ins);
+                throw new IllegalStateException("cache is closed");
+            }
+            journalWriter.writeRead(key);
+        }
+        redundantOpCount.incrementAndGet();
         if (journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
         }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+        return new Snapshot(key, entry, sequenceNumber, ins);
+    }
+
+    /**
+     * Returns true if a readable entry named {@code key} exists. This answers
+     * from the in-memory index: it touches neither the filesystem nor the
+     * journal and doesn't count as an access.
+     */
+    public boolean contains(String key) {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(new CacheKey(key));
+        return entry != null && entry.readable;
+    }
+
+    /**
+     * Returns the file holding the value at {@code index} of the entry named
+     * {@code key}, or null if it doesn't exist or is not currently readable.
+     * Nothing is opened and no journal record is written: the access only
+     * moves the entry in the in-memory LRU order, and reaches the journal at
+     * the next compaction or when the cache is closed.
+     *
+     * <p>Unlike a {@link Snapshot}, the file may be replaced by a later commit,
+     * deleted by eviction, or moved while the cache changes its layout, at
+     * any time.
+     */
+    public File peekFile(String key, int index) {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(new CacheKey(key));
+        if (entry == null || !entry.readable) {
+            return null;
+        }
+
+        entry.accessOrder = accessCounter.incrementAndGet();
+        entry.accessPending = true;
+        evictionPolicy.onAccess(key);
+        return entry.getCleanFile(index);
+    }
+
+    /**
+     * Opens a read-only channel on the value at {@code index} of the entry
+     * named {@code key}, or returns null if it doesn't exist or is not
+     * currently readable. Only that one file is opened; the access is recorded
+     * like {@link #peekFile}. The channel keeps reading the same data even if
+     * the entry is replaced or evicted afterwards.
+     */
+    public FileChannel openChannel(String key, int index) throws IOException {
+        File file = peekFile(key, index);
+        if (file == null) {
+            return null;
+        }
+        try {
+            return new FileInputStream(file).getChannel();
+        } catch (FileNotFoundException e) {
+            return null; // evicted or removed just now
+        }
+    }
+
+    private static void closeAll(InputStream[] ins) {
+        for (int i = 0; i < ins.length; i++) {
+            closeQuietly(ins[i]);
+            ins[i] = null;
+        }
     }
 
     /**
      * Returns an editor for the entry named {@code key}, or null if another
-     * edit is in progress.
+     * edit is in progress or a snapshot has pinned the entry.
      */
     public Editor edit(String key) throws IOException {
         return edit(key, ANY_SEQUENCE_NUMBER);
     }
 
-    private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
+    private Editor edit(String key, long expectedSequenceNumber) throws IOException {
+        Editor editor;
+        DiskLruJournal.Writer writer;
+        long position;
+        synchronized (this) {
+            editor = startEdit(key, expectedSequenceNumber);
+            if (editor == null) {
+                return null;
+            }
+            synchronized (journalLock) {
+                writer = journalWriter;
+                position = writer.writeDirty(key);
+            }
+        }
+
+        // the DIRTY record must reach the file before the editor creates files,
+        // to prevent file leaks; edits started meanwhile share the same write
+        try {
+            writer.awaitWritten(position);
+        } catch (IOException e) {
+            editor.abort();
+            throw e;
+        }
+        return editor;
+    }
+
+    private Editor startEdit(String key, long expectedSequenceNumber) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
+        while (evictingKeys.contains(key)) {
+            // the old files are still being deleted off the lock
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for eviction of " + key);
+            }
+        }
+        Entry entry = lruEntries.get(new CacheKey(key));
         if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
                 && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
             return null; // snapshot is stale
         }
         if (entry == null) {
             entry = new Entry(key);
-            lruEntries.put(key, entry);
+            entry.accessOrder = accessCounter.incrementAndGet();
+            lruEntries.put(entry, entry);
         } else if (entry.currentEditor != null) {
             return null; // another edit is in progress
+        } else if (entry.pinCount > 0) {
+            return null; // a snapshot has handed out channels or mappings
+        } else {
+            // the dirty files are created in this cache's layout
+            moveToLayout(entry);
+        }
+        if (shardedLayout) {
+            entryDirectory(key, true).mkdirs();
         }
 
         Editor editor = new Editor(entry);
         entry.currentEditor = editor;
-
-        // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
         return editor;
     }
 
@@ -563,7 +1096,15 @@ public final class DiskLruCache implements Closeable {
         return size;
     }
 
-    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+    private void completeEdit(Editor editor, boolean success) throws IOException {
+        completeEdit(editor, success, true);
+    }
+
+    /**
+     * @param trimInBackground false if the caller trims the cache itself
+     */
+    private synchronized void completeEdit(Editor editor, boolean success, boolean trimInBackground)
+            throws IOException {
         Entry entry = editor.entry;
         if (entry.currentEditor != editor) {
             throw new IllegalStateException();
@@ -579,36 +1120,48 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
-        for (int i = 0; i < valueCount; i++) {
-            File dirty = entry.getDirtyFile(i);
-            if (success) {
-                if (dirty.exists()) {
-                    File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
-                    long oldLength = entry.lengths[i];
-                    long newLength = clean.length();
-                    entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
+        entry.commitVersion++;
+        try {
+            for (int i = 0; i < valueCount; i++) {
+                File dirty = entry.getDirtyFile(i);
+                if (success) {
+                    if (dirty.exists()) {
+                        File clean = entry.getCleanFile(i);
+                        dirty.renameTo(clean);
+                        long oldLength = entry.lengths[i];
+                        long newLength = clean.length();
+                        entry.lengths[i] = newLength;
+                        size = size - oldLength + newLength;
+                    }
+                } else {
+                    deleteIfExists(dirty);
                 }
-            } else {
-                deleteIfExists(dirty);
             }
+            if (success) {
+                entry.sequenceNumber = nextSequenceNumber++;
+            }
+        } finally {
+            entry.commitVersion++;
         }
 
-        redundantOpCount++;
+        redundantOpCount.incrementAndGet();
         entry.currentEditor = null;
-        if (entry.readable | success) {
-            entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-            if (success) {
-                entry.sequenceNumber = nextSequenceNumber++;
+        String key = entry.getKey();
+        synchronized (journalLock) {
+            if (entry.readable | success) {
+                entry.readable = true;
+                entry.accessOrder = accessCounter.incrementAndGet();
+                journalWriter.writeClean(key, entry.lengths);
+            } else {
+                lruEntries.remove(entry);
+                journalWriter.writeRemove(key);
             }
-        } else {
-            lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+        }
+        if (success) {
+            evictionPolicy.onWrite(key, entry.getTotalLength());
         }
 
-        if (size > maxSize || journalRebuildRequired()) {
+        if ((trimInBackground && size > maxSize) || journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
         }
     }
@@ -619,24 +1172,28 @@ public final class DiskLruCache implements Closeable {
      */
     private boolean journalRebuildRequired() {
         final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
-        return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
-                && redundantOpCount >= lruEntries.size();
+        int redundantOps = redundantOpCount.get();
+        return redundantOps >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && redundantOps >= lruEntries.size();
     }
 
     /**
      * Drops the entry for {@code key} if it exists and can be removed. Entries
-     * actively being edited cannot be removed.
+     * actively being edited or pinned by a snapshot cannot be removed.
      *
      * @return true if an entry was removed.
      */
     public synchronized boolean remove(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null || entry.currentEditor != null) {
+        Entry entry = lruEntries.get(new CacheKey(key));
+        if (entry == null || entry.currentEditor != null || entry.pinCount > 0) {
             return false;
         }
 
+        // make concurrent readers that already passed the readable check retry
+        entry.readable = false;
+        entry.commitVersion += 2;
         for (int i = 0; i < valueCount; i++) {
             File file = entry.getCleanFile(i);
             if (!file.delete()) {
@@ -646,9 +1203,12 @@ public final class DiskLruCache implements Closeable {
             entry.lengths[i] = 0;
         }
 
-        redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
-        lruEntries.remove(key);
+        redundantOpCount.incrementAndGet();
+        synchronized (journalLock) {
+            journalWriter.writeRemove(key);
+        }
+        lruEntries.remove(entry);
+        evictionPolicy.onRemove(key);
 
         if (journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
@@ -671,12 +1231,21 @@ public final class DiskLruCache implements Closeable {
     }
 
     /**
-     * Force buffered operations to the filesystem.
+     * Force buffered operations to the filesystem. Waits until every journal
+     * record appended so far has been written.
      */
-    public synchronized void flush() throws IOException {
-        checkNotClosed();
-        trimToSize();
-        journalWriter.flush();
+    public void flush() throws IOException {
+        DiskLruJournal.Writer writer;
+        List<Entry> evicted;
+        synchronized (this) {
+            checkNotClosed();
+            evicted = trimToSize();
+            synchronized (journalLock) {
+                writer = journalWriter;
+            }
+        }
+        deleteEvicted(evicted);
+        writer.flush();
     }
 
     /**
@@ -691,19 +1260,202 @@ public final class DiskLruCache implements Closeable {
                 entry.currentEditor.abort();
             }
         }
-        trimToSize();
-        journalWriter.close();
-        journalWriter = null;
+        List<Entry> evicted = trimToSize();
+        synchronized (journalLock) {
+            writePendingAccesses();
+            journalWriter.close();
+            journalWriter = null;
+        }
+        deleteEvicted(evicted);
+    }
+
+    /**
+     * Writes READ records for entries accessed through {@link #peekFile} since
+     * their last journal record, in access order.
+     */
+    private void writePendingAccesses() throws IOException {
+        for (Entry entry : entriesInAccessOrder()) {
+            if (entry.accessPending) {
+                entry.accessPending = false;
+                journalWriter.writeRead(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Once the size exceeds maxSize, drops entries from the index until it is
+     * at or below the low watermark, and appends their REMOVE records in one
+     * batch. Must be called while holding the cache lock. The files are not
+     * deleted here; pass the result to {@link #deleteEvicted} after releasing
+     * the lock.
+     */
+    private List<Entry> trimToSize() throws IOException {
+        return trimToSize(Collections.<String>emptySet());
+    }
+
+    /**
+     * @param pinned keys the policy must not choose, told to it up front so
+     *     that it doesn't make decisions about them as candidates
+     */
+    private List<Entry> trimToSize(Set<String> pinned) throws IOException {
+        if (size <= maxSize) {
+            return Collections.emptyList();
+        }
+
+        List<Entry> evicted = new ArrayList<Entry>();
+        Set<String> skipped = pinned;
+        while (size > lowWatermark) {
+            String key = evictionPolicy.selectVictim(skipped);
+            if (key == null) {
+                break;
+            }
+            Entry toEvict = lruEntries.get(new CacheKey(key));
+            if (toEvict == null) {
+                evictionPolicy.onRemove(key);
+                continue;
+            }
+            if (toEvict.currentEditor != null || toEvict.pinCount > 0) {
+                if (!(skipped instanceof HashSet)) {
+                    skipped = new HashSet<String>(skipped);
+                }
+                skipped.add(key);
+                continue;
+            }
+
+            // make concurrent readers that already passed the readable check retry
+            toEvict.readable = false;
+            toEvict.commitVersion += 2;
+            for (int i = 0; i < valueCount; i++) {
+                size -= toEvict.lengths[i];
+            }
+            lruEntries.remove(toEvict);
+            evictionPolicy.onRemove(key);
+            evictingKeys.add(key);
+            evicted.add(toEvict);
+        }
+
+        if (!evicted.isEmpty()) {
+            synchronized (journalLock) {
+                for (Entry entry : evicted) {
+                    journalWriter.writeRemove(entry.getKey());
+                }
+            }
+            redundantOpCount.addAndGet(evicted.size());
+        }
+        return evicted;
     }
 
-    private void trimToSize() throws IOException {
-        while (size > maxSize) {
-//            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-            final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+    /**
+     * Deletes the files of entries evicted by {@link #trimToSize}. Files that
+     * can't be deleted are left behind; the entries are already gone from the
+     * index and the journal.
+     */
+    private void deleteEvicted(List<Entry> evicted) {
+        if (evicted.isEmpty()) {
+            return;
+        }
+        try {
+            for (Entry entry : evicted) {
+                for (int i = 0; i < valueCount; i++) {
+                    entry.getCleanFile(i).delete();
+                }
+            }
+        } finally {
+            synchronized (this) {
+                for (Entry entry : evicted) {
+                    evictingKeys.remove(entry.getKey());
+                }
+                notifyAll();
+            }
         }
     }
 
+    /**
+     * Moves the files of every entry to this cache's layout. Runs on the
+     * cleanup executor and takes the cache lock for one batch at a time, so
+     * the cache stays usable meanwhile. Entries created since the cache was
+     * opened are already in place, and edits move their entry first.
+     */
+    private void migrateLayout() throws IOException {
+        List<Entry> entries = new ArrayList<Entry>(lruEntries.values());
+        for (int start = 0; start < entries.size(); start += MIGRATION_BATCH_SIZE) {
+            synchronized (this) {
+                if (journalWriter == null) {
+                    return; // closed; the next open picks up from here
+                }
+                int end = Math.min(start + MIGRATION_BATCH_SIZE, entries.size());
+                for (int i = start; i < end; i++) {
+                    Entry entry = entries.get(i);
+                    if (lruEntries.get(entry) == entry) {
+                        moveToLayout(entry);
+                    }
+                }
+            }
+        }
+
+        synchronized (this) {
+            if (journalWriter != null) {
+                writeLayout(shardedLayout ? LAYOUT_SHARDED : LAYOUT_FLAT);
+            }
+        }
+    }
+
+    /**
+     * Renames the clean files of {@code entry} into this cache's layout.
+     * Lock-free readers see the move like a commit and retry.
+     */
+    private void moveToLayout(Entry entry) throws IOException {
+        if (entry.sharded == shardedLayout) {
+            return;
+        }
+
+        File target = entryDirectory(entry.getKey(), shardedLayout);
+        if (shardedLayout) {
+            target.mkdirs();
+        }
+        entry.commitVersion++;
+        try {
+            for (int i = 0; i < valueCount; i++) {
+                File from = entry.getCleanFile(i);
+                File to = new File(target, from.getName());
+                if (!from.renameTo(to) && from.exists()) {
+                    throw new IOException("failed to move " + from + " to " + to);
+                }
+            }
+            entry.sharded = shardedLayout;
+        } finally {
+            entry.commitVersion++;
+        }
+    }
+
+    /**
+     * Returns the directory holding the files of the entry named {@code key}
+     * in the flat or the sharded layout.
+     */
+    private File entryDirectory(String key, boolean sharded) {
+        if (!sharded) {
+            return directory;
+        }
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return new File(directory, Character.forDigit((hash >>> 4) & 0xf, 16) + File.separator
+                + Character.forDigit(hash & 0xf, 16));
+    }
+
+    /**
+     * Returns the file that holds the value at {@code index} of the entry
+     * named {@code key}, or that would hold it if the entry doesn't exist.
+     * Nothing is checked on the filesystem and the access isn't recorded.
+     */
+    public File getFile(String key, int index) {
+        validateKey(key);
+        Entry entry = lruEntries.get(new CacheKey(key));
+        if (entry != null) {
+            return entry.getCleanFile(index);
+        }
+        return new File(entryDirectory(key, shardedLayout), key + "." + index);
+    }
+
     /**
      * Closes the cache and deletes all of its stored values. This will delete
      * all files in the cache directory including files that weren't created by
@@ -729,11 +1481,17 @@ public final class DiskLruCache implements Closeable {
      * A snapshot of the values for an entry.
      */
     public final class Snapshot implements Closeable {
+        private final Entry entry;
         private final String key;
         private final long sequenceNumber;
         private final InputStream[] ins;
+        /** True once a channel or mapping was handed out; guarded by the cache. */
+        private boolean pinned;
+        /** False if eviction already ran while this snapshot pinned the entry. */
+        private boolean trimOnClose = true;
 
-        private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
+        private Snapshot(String key, Entry entry, long sequenceNumber, InputStream[] ins) {
+            this.entry = entry;
             this.key = key;
             this.sequenceNumber = sequenceNumber;
             this.ins = ins;
@@ -762,8 +1520,58 @@ public final class DiskLruCache implements Closeable {
             return inputStreamToString(getInputStream(index));
         }
 
+        /**
+         * Returns a read-only channel on the value for {@code index}. It shares
+         * the file descriptor and position with {@link #getInputStream}, so
+         * prefer positional reads when using both. The channel is closed with
+         * this snapshot.
+         *
+         * <p>Until this snapshot is closed the entry is pinned: it is not
+         * evicted, {@link #remove} returns false and new edits can't start.
+         * An edit that was already in progress may still commit; the channel
+         * keeps reading the snapshot's bytes, because the replaced file stays
+         * open.
+         */
+        public FileChannel getChannel(int index) {
+            pin();
+            return ((FileInputStream) ins[index]).getChannel();
+        }
+
+        /**
+         * Maps the whole value for {@code index} read-only, for zero-copy
+         * random access. The entry is pinned as described in
+         * {@link #getChannel}; don't use the mapping after closing this
+         * snapshot.
+         */
+        public MappedByteBuffer map(int index) throws IOException {
+            FileChannel channel = getChannel(index);
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        private void pin() {
+            synchronized (DiskLruCache.this) {
+                if (pinned) {
+                    return;
+                }
+                pinned = true;
+                entry.pinCount++;
+            }
+        }
+
         @Override
         public void close() {
+            boolean trim = false;
+            synchronized (DiskLruCache.this) {
+                if (pinned) {
+                    pinned = false;
+                    entry.pinCount--;
+                    trim = trimOnClose && size > maxSize && journalWriter != null;
+                }
+            }
+            if (trim) {
+                // eviction may have skipped this entry while it was pinned
+                executorService.submit(cleanupCallable);
+            }
             for (InputStream in : ins) {
                 closeQuietly(in);
             }
@@ -822,6 +1630,25 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
+        /**
+         * Sets the value at {@code index} to the contents of {@code file} by
+         * renaming it into this edit, so no bytes are copied. The file should
+         * live on the same filesystem as the cache directory; if the rename
+         * fails this returns false and {@code file} is left untouched, and the
+         * caller may fall back to {@link #newOutputStream}. Once adopted, the
+         * file belongs to the cache and is deleted if this edit is aborted.
+         */
+        public boolean adoptFile(int index, File file) throws IOException {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                File dirty = entry.getDirtyFile(index);
+                deleteIfExists(dirty);
+                return file.renameTo(dirty);
+            }
+        }
+
         /**
          * Sets the value at {@code index} to {@code value}.
          */
@@ -842,12 +1669,62 @@ public final class DiskLruCache implements Closeable {
         public void commit() throws IOException {
             if (hasErrors) {
                 completeEdit(this, false);
-                remove(entry.key); // the previous entry is stale
+                remove(entry.getKey()); // the previous entry is stale
             } else {
                 completeEdit(this, true);
             }
         }
 
+        /**
+         * Commits this edit like {@link #commit} and returns a snapshot of the
+         * committed values, pinned as described in {@link Snapshot#getChannel}.
+         * The entry is pinned before eviction can see it, and the eviction this
+         * commit requires runs before returning, while the entry is still
+         * pinned. So a policy that prefers to drop the newest entry (an
+         * admission filter, or one that favors small entries) can't delete its
+         * files before the caller has used them. Returns null if the edit
+         * failed.
+         *
+         * <p>The policy may decline to evict other entries for the pinned one,
+         * leaving the cache over its limit. Closing the snapshot doesn't trim
+         * again; the entry stays until the next eviction, usually started by
+         * the next commit, which may then drop it.
+         */
+        public Snapshot commitAndPin() throws IOException {
+            Snapshot snapshot;
+            List<Entry> evicted;
+            synchronized (DiskLruCache.this) {
+                if (hasErrors) {
+                    commit();
+                    return null;
+                }
+                completeEdit(this, true, false);
+                if (!entry.readable) {
+                    return null;
+                }
+                InputStream[] ins = new InputStream[valueCount];
+                try {
+                    for (int i = 0; i < valueCount; i++) {
+                        ins[i] = new FileInputStream(entry.getCleanFile(i));
+                    }
+                } catch (FileNotFoundException e) {
+                    closeAll(ins);
+                    return null; // the edit failed and the entry was removed
+                }
+                snapshot = new Snapshot(entry.getKey(), entry, entry.sequenceNumber, ins);
+                snapshot.trimOnClose = false;
+                snapshot.pin();
+                try {
+                    evicted = trimToSize(Collections.singleton(entry.getKey()));
+                } catch (IOException e) {
+                    snapshot.close();
+                    throw e;
+                }
+            }
+            deleteEvicted(evicted);
+            return snapshot;
+        }
+
         /**
          * Aborts this edit. This releases the edit lock so another edit may be
          * started on the same key.
@@ -899,32 +1776,41 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
-    private final class Entry {
-        private final String key;
-
+    private final class Entry extends CacheKey {
         /** Lengths of this entry's files. */
         private final long[] lengths;
 
         /** True if this entry has ever been published */
-        private boolean readable;
+        private volatile boolean readable;
 
         /** The ongoing edit or null if this entry is not being edited. */
         private Editor currentEditor;
 
         /** The sequence number of the most recently committed edit to this entry. */
-        private long sequenceNumber;
+        private volatile long sequenceNumber;
+
+        /**
+         * Bumped before and after a commit renames the files (odd while it is
+         * in progress) and on removal, so lock-free readers can detect races.
+         */
+        private volatile int commitVersion;
+
+        /** Larger values were used more recently. */
+        private volatile long accessOrder;
+
+        /** Snapshots that handed out channels or mappings; guarded by the cache. */
+        private int pinCount;
+
+        /** Accessed through peekFile() since the last journal record for it. */
+        private volatile boolean accessPending;
+
+        /** True if the files are in the sharded layout; changed under the cache lock. */
+        private volatile boolean sharded;
 
         private Entry(String key) {
-            this.key = key;
+            super(key);
             this.lengths = new long[valueCount];
-        }
-
-        public String getLengths() throws IOException {
-            StringBuilder result = new StringBuilder();
-            for (long size : lengths) {
-                result.append(' ').append(size);
-            }
-            return result.toString();
+            this.sharded = shardedLayout;
         }
 
         /**
@@ -948,12 +1834,22 @@ public final class DiskLruCache implements Closeable {
             throw new IOException("unexpected journal line: " + Arrays.toString(strings));
         }
 
+        private long getTotalLength() {
+            long total = 0;
+            for (long length : lengths) {
+                total += length;
+            }
+            return total;
+        }
+
         public File getCleanFile(int i) {
-            return new File(directory, key + "." + i);
+            String key = getKey();
+            return new File(entryDirectory(key, sharded), key + "." + i);
         }
 
         public File getDirtyFile(int i) {
-            return new File(directory, key + "." + i + ".tmp");
+            String key = getKey();
+            return new File(entryDirectory(key, sharded), key + "." + i + ".tmp");
         }
     }
 }
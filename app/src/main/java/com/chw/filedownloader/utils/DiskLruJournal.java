@@ -0,0 +1,557 @@
+package com.chw.filedownloader.utils;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * @author chaihongwei 2026-10-18 20:50
+ * DiskLruCache的二进制日志格式
+ * 文本日志每条记录都要逐字节读一行再split,打开缓存时会创建大量临时字符串,记录多了冷启动明显变慢
+ * 二进制日志的记录是定长的,批量读到缓冲区中直接解析,每条记录带有CRC校验,
+ * 进程在写入过程中被杀掉时只丢弃尾部不完整的记录,不会导致整个缓存被删除
+ * <p>
+ * 文件头: magic(int) version(int) appVersion(int) valueCount(int) crc(int)
+ * 记录: op(byte) key lengths(只有CLEAN有,valueCount个long) crc(int)
+ * key是32位小写十六进制(EncryptUtils.hashKeyForDisk的结果)时保存为16字节的摘要,
+ * 否则op带上FLAG_RAW_KEY标记,保存为unsigned short长度+UTF-8字节
+ * crc是从op开始到crc之前所有字节的CRC32
+ */
+final class DiskLruJournal {
+    /**
+     * "DLRJ"
+     */
+    static final int MAGIC = 0x444C524A;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 5 * 4;
+
+    static final int OP_CLEAN = 1;
+    static final int OP_DIRTY = 2;
+    static final int OP_REMOVE = 3;
+    static final int OP_READ = 4;
+    private static final int FLAG_RAW_KEY = 0x80;
+    private static final int OP_MASK = 0x7F;
+
+    private static final int DIGEST_SIZE = 16;
+    private static final int MAX_RAW_KEY_SIZE = 0xFFFF;
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private DiskLruJournal() {
+    }
+
+    /**
+     * 日志文件是否是二进制格式,旧版本的文本日志以"libcore.io.DiskLruCache"开头
+     */
+    static boolean isBinary(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt() == MAGIC;
+        } catch (IOException ex) {
+            return false;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * 逐条接收读到的记录
+     */
+    interface Visitor {
+        /**
+         * @param lengths 只有CLEAN记录有效,数组会被下一条记录复用,需要保存时自行拷贝
+         */
+        void onRecord(int op, String key, long[] lengths) throws IOException;
+    }
+
+    /**
+     * 读取整个日志,文件头不匹配时抛出IOException
+     *
+     * @return 所有记录都完整时返回true, 尾部有损坏或者不完整的记录时返回false, 之后的内容全部忽略
+     */
+    static boolean read(File file, int appVersion, int valueCount, Visitor visitor) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            RecordReader reader = new RecordReader(in);
+            if (!reader.require(HEADER_SIZE)) {
+                throw new IOException("journal header is truncated");
+            }
+            int magic = reader.readInt();
+            int version = reader.readInt();
+            int storedAppVersion = reader.readInt();
+            int storedValueCount = reader.readInt();
+            if (reader.readInt() != reader.crc(0, HEADER_SIZE - 4)) {
+                throw new IOException("journal header is corrupt");
+            }
+            if (magic != MAGIC || version != VERSION
+                    || storedAppVersion != appVersion || storedValueCount != valueCount) {
+                throw new IOException("unexpected journal header: ["
+                        + magic + ", " + version + ", " + storedAppVersion + ", " + storedValueCount + "]");
+            }
+            reader.consume();
+
+            long[] lengths = new long[valueCount];
+            while (true) {
+                if (!reader.require(1)) {
+                    return true;
+                }
+                int flaggedOp = reader.peekByte() & 0xFF;
+                int op = flaggedOp & OP_MASK;
+                if (op < OP_CLEAN || op > OP_READ) {
+                    return false;
+                }
+
+                int keySize;
+                int recordSize;
+                if ((flaggedOp & FLAG_RAW_KEY) != 0) {
+                    if (!reader.require(3)) {
+                        return false;
+                    }
+                    keySize = reader.peekUnsignedShort(1);
+                    recordSize = 1 + 2 + keySize;
+                } else {
+                    keySize = DIGEST_SIZE;
+                    recordSize = 1 + DIGEST_SIZE;
+                }
+                if (op == OP_CLEAN) {
+                    recordSize += valueCount * 8;
+                }
+                if (!reader.require(recordSize + 4)) {
+                    return false;
+                }
+
+                int crc = reader.crc(0, recordSize);
+                reader.skip(1);
+                String key;
+                if ((flaggedOp & FLAG_RAW_KEY) != 0) {
+                    reader.skip(2);
+                    key = reader.readUtf8(keySize);
+                } else {
+                    key = reader.readHex(DIGEST_SIZE);
+                }
+                if (op == OP_CLEAN) {
+                    for (int i = 0; i < valueCount; i++) {
+                        lengths[i] = reader.readLong();
+                    }
+                }
+                if (reader.readInt() != crc) {
+                    return false;
+                }
+                reader.consume();
+
+                visitor.onRecord(op, key, lengths);
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * 批量读取文件到缓冲区,记录直接从缓冲区中解析
+     */
+    private static final class RecordReader {
+        private final InputStream mIn;
+        private final CRC32 mCrc = new CRC32();
+        private byte[] mBuffer = new byte[IO_BUFFER_SIZE];
+        /**
+         * 当前记录的起始位置
+         */
+        private int mStart;
+        /**
+         * 当前记录的解析位置
+         */
+        private int mPosition;
+        private int mLimit;
+        private boolean mEof;
+
+        RecordReader(InputStream in) {
+            this.mIn = in;
+        }
+
+        /**
+         * 保证从当前记录的起始位置开始至少有size字节可以读取
+         *
+         * @return 文件剩余的内容不足size字节时返回false
+         */
+        boolean require(int size) throws IOException {
+            while (mLimit - mStart < size) {
+                if (mEof) {
+                    return false;
+                }
+                if (mStart > 0) {
+                    System.arraycopy(mBuffer, mStart, mBuffer, 0, mLimit - mStart);
+                    mLimit -= mStart;
+                    mPosition -= mStart;
+                    mStart = 0;
+                }
+                if (mLimit == mBuffer.length) {
+                    byte[] buffer = new byte[mBuffer.length * 2];
+                    System.arraycopy(mBuffer, 0, buffer, 0, mLimit);
+                    mBuffer = buffer;
+                }
+                int len = mIn.read(mBuffer, mLimit, mBuffer.length - mLimit);
+                if (len == -1) {
+                    mEof = true;
+                } else {
+                    mLimit += len;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 当前记录解析完成
+         */
+        void consume() {
+            mStart = mPosition;
+        }
+
+        int crc(int offset, int length) {
+            mCrc.reset();
+            mCrc.update(mBuffer, mStart + offset, length);
+            return (int) mCrc.getValue();
+        }
+
+        byte peekByte() {
+            return mBuffer[mStart];
+        }
+
+        int peekUnsignedShort(int offset) {
+            int p = mStart + offset;
+            return ((mBuffer[p] & 0xFF) << 8) | (mBuffer[p + 1] & 0xFF);
+        }
+
+        void skip(int size) {
+            mPosition += size;
+        }
+
+        int readInt() {
+            byte[] b = mBuffer;
+            int p = mPosition;
+            mPosition += 4;
+            return ((b[p] & 0xFF) << 24) | ((b[p + 1] & 0xFF) << 16) | ((b[p + 2] & 0xFF) << 8) | (b[p + 3] & 0xFF);
+        }
+
+        long readLong() {
+            long high = readInt() & 0xFFFFFFFFL;
+            long low = readInt() & 0xFFFFFFFFL;
+            return (high << 32) | low;
+        }
+
+        String readUtf8(int size) {
+            String value = new String(mBuffer, mPosition, size, UTF_8);
+            mPosition += size;
+            return value;
+        }
+
+        String readHex(int size) {
+            char[] chars = new char[size * 2];
+            for (int i = 0; i < size; i++) {
+                int b = mBuffer[mPosition + i] & 0xFF;
+                chars[i * 2] = HEX_DIGITS[b >>> 4];
+                chars[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
+            }
+            mPosition += size;
+            return new String(chars);
+        }
+    }
+
+    /**
+     * 日志写入器,线程安全
+     * 记录在调用线程中编码到内存中的待写缓冲区,只需要很短的加锁时间,不做任何I/O;
+     * 指定了executor时由后台任务把积攒的一批记录一次写入文件(group commit),
+     * 写入期间新的记录追加到另一个缓冲区,两个缓冲区交替使用
+     * 记录按追加的顺序写入文件,需要确认某条记录已经写入时调用{@link #awaitWritten(long)}
+     */
+    static final class Writer implements Closeable {
+        private final OutputStream mOut;
+        private final int mValueCount;
+        /**
+         * 打开时文件已有的长度
+         */
+        private final long mBaseLength;
+        /**
+         * 执行批量写入的线程池,为null时在调用线程中写入,缓冲区满了或者flush时才写
+         */
+        private final Executor mExecutor;
+        private final CRC32 mCrc = new CRC32();
+        private final Runnable mDrainTask = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        private byte[] mPending = new byte[IO_BUFFER_SIZE];
+        private int mPendingSize;
+        private int mRecordStart;
+        /**
+         * 后台写入时交替使用的另一个缓冲区,正在写入时为null
+         */
+        private byte[] mSpare = new byte[IO_BUFFER_SIZE];
+        /**
+         * 已经追加的字节总数和已经写入文件的字节总数
+         */
+        private long mAppended;
+        private long mWritten;
+        /**
+         * 后台写入任务已经提交,还没有结束
+         */
+        private boolean mDraining;
+        private IOException mError;
+
+        /**
+         * @param append   false时清空文件并写入文件头
+         * @param executor 执行批量写入的线程池,为null时同步写入
+         */
+        Writer(File file, boolean append, int appVersion, int valueCount, Executor executor) throws IOException {
+            this.mBaseLength = append ? file.length() : 0;
+            this.mOut = new FileOutputStream(file, append);
+            this.mValueCount = valueCount;
+            this.mExecutor = executor;
+            if (!append) {
+                synchronized (this) {
+                    mRecordStart = mPendingSize;
+                    putInt(MAGIC);
+                    putInt(VERSION);
+                    putInt(appVersion);
+                    putInt(valueCount);
+                    finishRecord();
+                }
+            }
+        }
+
+        /**
+         * @return 这条记录结束时已经追加的字节总数, 用于{@link #awaitWritten(long)}
+         */
+        synchronized long writeClean(String key, long[] lengths) throws IOException {
+            putKey(OP_CLEAN, key);
+            for (int i = 0; i < mValueCount; i++) {
+                putLong(lengths[i]);
+            }
+            return finishRecord();
+        }
+
+        synchronized long writeDirty(String key) throws IOException {
+            putKey(OP_DIRTY, key);
+            return finishRecord();
+        }
+
+        synchronized long writeRemove(String key) throws IOException {
+            putKey(OP_REMOVE, key);
+            return finishRecord();
+        }
+
+        synchronized long writeRead(String key) throws IOException {
+            putKey(OP_READ, key);
+            return finishRecord();
+        }
+
+        /**
+         * 等待position之前的所有记录都写入文件,同时追加的记录会在同一批中一起写入
+         */
+        void awaitWritten(long position) throws IOException {
+            if (mExecutor == null) {
+                synchronized (this) {
+                    if (mWritten < position) {
+                        writePending();
+                    }
+                }
+                return;
+            }
+
+            boolean interrupted = false;
+            synchronized (this) {
+                while (mWritten < position && mError == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                if (mError != null) {
+                    throw mError;
+                }
+            }
+        }
+
+        /**
+         * 已经追加的记录全部写入后的文件长度
+         */
+        synchronized long getFileLength() {
+            return mBaseLength + mAppended;
+        }
+
+        /**
+         * 已经写入文件的长度,这个长度之前的内容可以从文件中读取
+         */
+        synchronized long getWrittenFileLength() {
+            return mBaseLength + mWritten;
+        }
+
+        /**
+         * 等待所有已经追加的记录写入文件
+         */
+        void flush() throws IOException {
+            long position;
+            synchronized (this) {
+                position = mAppended;
+            }
+            awaitWritten(position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                mOut.close();
+            }
+        }
+
+        private void putKey(int op, String key) {
+            mRecordStart = mPendingSize;
+            if (isDigestKey(key)) {
+                ensureCapacity(1 + DIGEST_SIZE);
+                mPending[mPendingSize++] = (byte) op;
+                for (int i = 0; i < DIGEST_SIZE; i++) {
+                    mPending[mPendingSize++] = (byte) ((hexValue(key.charAt(i * 2)) << 4) | hexValue(key.charAt(i * 2 + 1)));
+                }
+            } else {
+                byte[] bytes = key.getBytes(UTF_8);
+                if (bytes.length > MAX_RAW_KEY_SIZE) {
+                    throw new IllegalArgumentException("key is too long: " + bytes.length + " bytes");
+                }
+                ensureCapacity(1 + 2 + bytes.length);
+                mPending[mPendingSize++] = (byte) (op | FLAG_RAW_KEY);
+                mPending[mPendingSize++] = (byte) (bytes.length >>> 8);
+                mPending[mPendingSize++] = (byte) bytes.length;
+                System.arraycopy(bytes, 0, mPending, mPendingSize, bytes.length);
+                mPendingSize += bytes.length;
+            }
+        }
+
+        private void putInt(int value) {
+            ensureCapacity(4);
+            mPending[mPendingSize++] = (byte) (value >>> 24);
+            mPending[mPendingSize++] = (byte) (value >>> 16);
+            mPending[mPendingSize++] = (byte) (value >>> 8);
+            mPending[mPendingSize++] = (byte) value;
+        }
+
+        private void putLong(long value) {
+            putInt((int) (value >>> 32));
+            putInt((int) value);
+        }
+
+        private long finishRecord() throws IOException {
+            mCrc.reset();
+            mCrc.update(mPending, mRecordStart, mPendingSize - mRecordStart);
+            putInt((int) mCrc.getValue());
+            mAppended += mPendingSize - mRecordStart;
+
+            if (mExecutor == null) {
+                if (mPendingSize >= IO_BUFFER_SIZE) {
+                    writePending();
+                }
+            } else if (!mDraining) {
+                mDraining = true;
+                mExecutor.execute(mDrainTask);
+            }
+            return mAppended;
+        }
+
+        /**
+         * 同步模式下在调用线程中写入待写缓冲区
+         */
+        private void writePending() throws IOException {
+            mOut.write(mPending, 0, mPendingSize);
+            mWritten += mPendingSize;
+            mPendingSize = 0;
+        }
+
+        /**
+         * 后台任务,交换缓冲区后在锁外写入,直到没有新的记录
+         */
+        private void drain() {
+            while (true) {
+                byte[] batch;
+                int size;
+                synchronized (this) {
+                    if (mPendingSize == 0) {
+                        mDraining = false;
+                        notifyAll();
+                        return;
+                    }
+                    batch = mPending;
+                    size = mPendingSize;
+                    mPending = mSpare;
+                    mPendingSize = 0;
+                    mSpare = null;
+                }
+
+                IOException error = null;
+                try {
+                    mOut.write(batch, 0, size);
+                } catch (IOException e) {
+                    error = e;
+                }
+
+                synchronized (this) {
+                    //一次追加了很大的记录时不保留过大的缓冲区
+                    mSpare = batch.length > IO_BUFFER_SIZE * 4 ? new byte[IO_BUFFER_SIZE] : batch;
+                    mWritten += size;
+                    if (error != null && mError == null) {
+                        mError = error;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+
+        private void ensureCapacity(int size) {
+            if (mPendingSize + size + 4 > mPending.length) {
+                byte[] pending = new byte[Math.max(mPending.length * 2, mPendingSize + size + 4)];
+                System.arraycopy(mPending, 0, pending, 0, mPendingSize);
+                mPending = pending;
+            }
+        }
+    }
+
+    /**
+     * key是否可以保存为16字节的摘要,只有小写的十六进制才能原样还原
+     */
+    private static boolean isDigestKey(String key) {
+        if (key.length() != DIGEST_SIZE * 2) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (hexValue(key.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+}
@@ -1,5 +1,8 @@
 package com.chw.filedownloader.utils;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -85,6 +88,34 @@ public class EncryptUtils {
         return cacheKey;
     }
 
+    /**
+     * 计算文件内容的摘要,用作内容去重的key
+     * 取SHA-256的前16字节,与{@link #hashKeyForDisk(String)}一样是32个十六进制字符
+     */
+    public static String hashFileContent(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        byte[] contentKey = new byte[16];
+        System.arraycopy(digest.digest(), 0, contentKey, 0, contentKey.length);
+        return bytesToHexString(contentKey);
+    }
+
     private static String bytesToHexString(byte[] bytes) {
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < bytes.length; i++) {
@@ -0,0 +1,37 @@
+package com.chw.filedownloader.utils;
+
+import java.util.Set;
+
+/**
+ * @author chaihongwei 2026-10-18 21:10
+ * DiskLruCache的淘汰策略,决定缓存超出大小限制时先删除哪个条目
+ * 策略只记录可以被淘汰的已提交条目,缓存的读取不加缓存锁,所以实现类需要自己保证线程安全
+ * 每个DiskLruCache实例使用自己的策略对象,不能共享
+ */
+public interface EvictionPolicy {
+    /**
+     * 条目被读取,可能在多个线程中同时调用
+     */
+    void onAccess(String key);
+
+    /**
+     * 新增或者更新了条目
+     *
+     * @param size 条目所有值的总字节数
+     */
+    void onWrite(String key, long size);
+
+    /**
+     * 条目被删除或者淘汰
+     */
+    void onRemove(String key);
+
+    /**
+     * 选出下一个要淘汰的条目,调用者删除条目后会调用{@link #onRemove(String)}
+     *
+     * @param skipped 本次淘汰中已经跳过的条目,比如正在编辑或者被固定,不能再选
+     * @return 没有可以淘汰的条目时返回null, 策略认为不应该淘汰剩下的条目时(比如只有被固定的新条目没有准入)
+     * 也可以返回null, 缓存会暂时超出限制
+     */
+    String selectVictim(Set<String> skipped);
+}
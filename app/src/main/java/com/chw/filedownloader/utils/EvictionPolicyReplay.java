@@ -0,0 +1,195 @@
+package com.chw.filedownloader.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * @author chaihongwei 2026-10-18 21:40
+ * 淘汰策略回放工具,在记录下来的访问序列上模拟缓存,比较不同淘汰策略的命中率,用来为
+ * {@link com.chw.filedownloader.config.FileDownloaderConfig.Builder#setEvictionPolicy(int)}选择合适的策略
+ * <p>
+ * 访问序列是文本文件,每行一次请求,格式为"key size",key是文件的缓存key或者url,size是文件字节数,
+ * 空行和#开头的行会被忽略,可以从服务器访问日志或者客户端埋点中导出
+ * <p>
+ * 模拟过程与DiskLruCache一致: 命中时调用onAccess,未命中时当作下载完成后写入,
+ * 超出大小限制后按策略选择的顺序淘汰,一次淘汰到比限制低10%的水位线,
+ * 与FileDownloader提交时一样,刚写入的文件在这次淘汰中被固定,不会被选中,
+ * 策略不为它淘汰其他条目时缓存暂时超出限制,到下一次写入时再淘汰
+ * <p>
+ * 在电脑上运行: java EvictionPolicyReplay &lt;访问序列文件&gt; &lt;缓存大小(字节)&gt;
+ */
+public final class EvictionPolicyReplay {
+    private static final String[] POLICY_NAMES = {"LRU", "TinyLFU", "GreedyDual-Size"};
+
+    private EvictionPolicyReplay() {
+    }
+
+    /**
+     * 一个策略的回放结果
+     */
+    public static final class Result {
+        private final String mPolicyName;
+        private long mRequests;
+        private long mHits;
+        private long mRequestedBytes;
+        private long mHitBytes;
+        private long mEvictions;
+
+        Result(String policyName) {
+            this.mPolicyName = policyName;
+        }
+
+        public String getPolicyName() {
+            return mPolicyName;
+        }
+
+        public long getRequests() {
+            return mRequests;
+        }
+
+        public long getHits() {
+            return mHits;
+        }
+
+        public long getEvictions() {
+            return mEvictions;
+        }
+
+        /**
+         * 请求命中率
+         */
+        public double getHitRatio() {
+            return mRequests > 0 ? 1.0 * mHits / mRequests : 0;
+        }
+
+        /**
+         * 字节命中率,即节省下来的下载流量占比
+         */
+        public double getByteHitRatio() {
+            return mRequestedBytes > 0 ? 1.0 * mHitBytes / mRequestedBytes : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-16s requests=%d hits=%d hitRatio=%.2f%% byteHitRatio=%.2f%% evictions=%d",
+                    mPolicyName, mRequests, mHits, getHitRatio() * 100, getByteHitRatio() * 100, mEvictions);
+        }
+    }
+
+    /**
+     * 用内置的几种策略分别回放访问序列
+     *
+     * @return 每个策略一行的结果
+     */
+    public static String compare(File trace, long maxSize) throws IOException {
+        StringBuilder report = new StringBuilder();
+        for (String name : POLICY_NAMES) {
+            report.append(replay(name, newPolicy(name), trace, maxSize)).append('\n');
+        }
+        return report.toString();
+    }
+
+    /**
+     * 用指定的策略回放访问序列
+     *
+     * @param policy 新创建的策略对象
+     */
+    public static Result replay(String policyName, EvictionPolicy policy, File trace, long maxSize)
+            throws IOException {
+        Result result = new Result(policyName);
+        HashMap<String, Long> cached = new HashMap<>();
+        long size = 0;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(trace), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                if (parts.length < 2) {
+                    throw new IOException("unexpected trace line: " + line);
+                }
+                String key = parts[0];
+                long length;
+                try {
+                    length = Long.parseLong(parts[1]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("unexpected trace line: " + line);
+                }
+
+                result.mRequests++;
+                result.mRequestedBytes += length;
+                Long cachedLength = cached.get(key);
+                if (cachedLength != null && cachedLength == length) {
+                    result.mHits++;
+                    result.mHitBytes += length;
+                    policy.onAccess(key);
+                    continue;
+                }
+
+                //未命中或者文件大小变了,重新下载后写入
+                size += length - (cachedLength != null ? cachedLength : 0);
+                cached.put(key, length);
+                policy.onWrite(key, length);
+                size = trimToSize(policy, cached, size, maxSize, Collections.singleton(key), result);
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        return result;
+    }
+
+    /**
+     * 与DiskLruCache的trimToSize相同: 超出maxSize后淘汰到水位线以下
+     *
+     * @param pinned 被固定不能淘汰的条目
+     * @return 淘汰后的缓存大小
+     */
+    private static long trimToSize(EvictionPolicy policy, HashMap<String, Long> cached, long size, long maxSize,
+                                   Set<String> pinned, Result result) {
+        if (size <= maxSize) {
+            return size;
+        }
+        long lowWatermark = DiskLruCache.lowWatermark(maxSize);
+        while (size > lowWatermark) {
+            String victim = policy.selectVictim(pinned);
+            if (victim == null) {
+                break;
+            }
+            Long victimLength = cached.remove(victim);
+            if (victimLength != null) {
+                size -= victimLength;
+                result.mEvictions++;
+            }
+            policy.onRemove(victim);
+        }
+        return size;
+    }
+
+    private static EvictionPolicy newPolicy(String name) {
+        if ("TinyLFU".equals(name)) {
+            return new TinyLfuEvictionPolicy();
+        } else if ("GreedyDual-Size".equals(name)) {
+            return new GreedyDualSizeEvictionPolicy();
+        }
+        return new LruEvictionPolicy();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("usage: EvictionPolicyReplay <trace file> <cache size in bytes>");
+            return;
+        }
+        System.out.print(compare(new File(args[0]), Long.parseLong(args[1])));
+    }
+}
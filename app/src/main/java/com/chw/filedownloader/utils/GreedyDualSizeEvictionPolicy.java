@@ -0,0 +1,90 @@
+package com.chw.filedownloader.utils;
+
+import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * @author chaihongwei 2026-10-18 21:30
+ * GreedyDual-Size,兼顾访问时间和条目大小的淘汰策略
+ * 每个条目的优先级是 L + 1/size,访问时重新计算,淘汰优先级最低的条目,并把L提高到它的优先级,
+ * L随着淘汰不断增长,很久没有访问的条目优先级自然落后,相同的访问时间下大文件先被淘汰,
+ * 同样的缓存空间可以留住更多的小文件,适合大量小资源和少量大文件混合的场景
+ */
+public final class GreedyDualSizeEvictionPolicy implements EvictionPolicy {
+    private final HashMap<String, Node> mNodes = new HashMap<>();
+    private final TreeSet<Node> mQueue = new TreeSet<>();
+    /**
+     * 膨胀值L,最近一次淘汰的条目的优先级
+     */
+    private double mInflation;
+    private long mNextOrder;
+
+    @Override
+    public synchronized void onAccess(String key) {
+        Node node = mNodes.get(key);
+        if (node != null) {
+            update(node, node.mSize);
+        }
+    }
+
+    @Override
+    public synchronized void onWrite(String key, long size) {
+        Node node = mNodes.get(key);
+        if (node == null) {
+            node = new Node(key);
+            mNodes.put(key, node);
+        }
+        update(node, size);
+    }
+
+    @Override
+    public synchronized void onRemove(String key) {
+        Node node = mNodes.remove(key);
+        if (node != null) {
+            mQueue.remove(node);
+        }
+    }
+
+    @Override
+    public synchronized String selectVictim(Set<String> skipped) {
+        for (Node node : mQueue) {
+            if (!skipped.contains(node.mKey)) {
+                mInflation = node.mPriority;
+                return node.mKey;
+            }
+        }
+        return null;
+    }
+
+    private void update(Node node, long size) {
+        mQueue.remove(node);
+        node.mSize = size;
+        node.mPriority = mInflation + 1.0 / Math.max(1, size);
+        node.mOrder = mNextOrder++;
+        mQueue.add(node);
+    }
+
+    private static final class Node implements Comparable<Node> {
+        private final String mKey;
+        private long mSize;
+        private double mPriority;
+        /**
+         * 优先级相同时先淘汰较早访问的
+         */
+        private long mOrder;
+
+        Node(String key) {
+            this.mKey = key;
+        }
+
+        @Override
+        public int compareTo(Node other) {
+            int result = Double.compare(mPriority, other.mPriority);
+            if (result == 0) {
+                result = mOrder < other.mOrder ? -1 : (mOrder == other.mOrder ? 0 : 1);
+            }
+            return result;
+        }
+    }
+}
@@ -3,6 +3,10 @@ package com.chw.filedownloader.utils;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * @author chaihongwei 2020-07-09 15:58
@@ -42,4 +46,49 @@ public class IOUtils {
             }
         }
     }
+
+    /**
+     * 从channel中读取数据,直到buffer读满或者读到末尾
+     * 网络流每次只能读到很少的数据,攒满一个缓冲区再写文件可以减少写入次数
+     *
+     * @return 本次读取的字节数, 已经读到末尾并且没有读到任何数据时返回-1
+     */
+    public static int fill(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int len = channel.read(buffer);
+            if (len == -1) {
+                return total == 0 ? -1 : total;
+            }
+            total += len;
+        }
+        return total;
+    }
+
+    /**
+     * 将buffer中的数据全部写入文件的指定位置
+     *
+     * @return 写入后的文件位置
+     */
+    public static long writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return position;
+    }
+
+    /**
+     * 将整个文件拷贝到target中,由FileChannel.transferTo完成,目标也是文件时可以不经过用户空间
+     */
+    public static void transferFile(FileChannel source, WritableByteChannel target) throws IOException {
+        long position = 0;
+        long size = source.size();
+        while (position < size) {
+            long len = source.transferTo(position, size - position, target);
+            if (len <= 0) {
+                throw new IOException("transferTo returned " + len + " at " + position + "/" + size);
+            }
+            position += len;
+        }
+    }
 }
@@ -0,0 +1,40 @@
+package com.chw.filedownloader.utils;
+
+import java.util.Set;
+
+/**
+ * @author chaihongwei 2026-10-18 21:10
+ * 最近最少使用,淘汰最久没有读写过的条目,与DiskLruCache原来的行为一致
+ */
+public final class LruEvictionPolicy implements EvictionPolicy {
+    /**
+     * 按访问顺序排列,最久没有访问的在最前面,条目很多时也只占用几个基本类型数组
+     */
+    private final CompactLruIndex mEntries = new CompactLruIndex();
+
+    @Override
+    public synchronized void onAccess(String key) {
+        mEntries.touch(key);
+    }
+
+    @Override
+    public synchronized void onWrite(String key, long size) {
+        mEntries.add(key);
+    }
+
+    @Override
+    public synchronized void onRemove(String key) {
+        mEntries.remove(key);
+    }
+
+    @Override
+    public synchronized String selectVictim(Set<String> skipped) {
+        for (int slot = mEntries.eldest(); slot != CompactLruIndex.NIL; slot = mEntries.newer(slot)) {
+            String key = mEntries.keyAt(slot);
+            if (!skipped.contains(key)) {
+                return key;
+            }
+        }
+        return null;
+    }
+}
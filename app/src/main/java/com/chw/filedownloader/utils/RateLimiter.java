@@ -0,0 +1,90 @@
+package com.chw.filedownloader.utils;
+
+/**
+ * @author chaihongwei 2026-10-18 11:30
+ * 令牌桶限速器,按字节数限制读取速度
+ * 同一个实例可以被多个下载任务共享,此时限制的是这些任务的总速度
+ */
+public final class RateLimiter {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /**
+     * 每秒允许通过的字节数,小于等于0表示不限速
+     */
+    private volatile long mBytesPerSecond;
+    /**
+     * 桶中当前的令牌数,为负数时表示已经预支了令牌,后来的调用者需要等待更久
+     */
+    private double mTokens;
+    /**
+     * 上次补充令牌的时间
+     */
+    private long mLastRefillNanos;
+
+    /**
+     * @param bytesPerSecond 每秒允许通过的字节数,小于等于0表示不限速
+     */
+    public RateLimiter(long bytesPerSecond) {
+        this.mBytesPerSecond = bytesPerSecond;
+        this.mLastRefillNanos = System.nanoTime();
+        this.mTokens = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * 修改限速,对正在进行中的下载任务立即生效
+     */
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+        refill(System.nanoTime());
+        this.mBytesPerSecond = bytesPerSecond;
+        mTokens = Math.min(mTokens, Math.max(0, bytesPerSecond));
+    }
+
+    public long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * 获取bytes个字节的令牌,令牌不足时阻塞当前线程直到令牌足够
+     * 被中断时立即返回,并保留线程的中断状态
+     */
+    public void acquire(long bytes) {
+        if (mBytesPerSecond <= 0 || bytes <= 0) {
+            return;
+        }
+
+        long waitNanos;
+        synchronized (this) {
+            long bytesPerSecond = mBytesPerSecond;
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+
+            refill(System.nanoTime());
+            //先预支令牌,再在锁外等待,保证多个线程按调用顺序依次获得带宽
+            mTokens -= bytes;
+            waitNanos = mTokens >= 0 ? 0 : (long) (-mTokens * NANOS_PER_SECOND / bytesPerSecond);
+        }
+
+        if (waitNanos > 0) {
+            try {
+                Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 根据流逝的时间补充令牌,桶的容量为1秒的流量,允许短时间的突发
+     */
+    private void refill(long nowNanos) {
+        long bytesPerSecond = mBytesPerSecond;
+        long elapsedNanos = nowNanos - mLastRefillNanos;
+        mLastRefillNanos = nowNanos;
+        if (bytesPerSecond <= 0 || elapsedNanos <= 0) {
+            return;
+        }
+
+        mTokens = Math.min(bytesPerSecond, mTokens + (double) elapsedNanos * bytesPerSecond / NANOS_PER_SECOND);
+    }
+}
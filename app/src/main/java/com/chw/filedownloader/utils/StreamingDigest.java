@@ -0,0 +1,162 @@
+package com.chw.filedownloader.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * @author chaihongwei 2026-10-18 23:55
+ * 边写入边计算摘要,可以同时计算多种摘要
+ * 写入文件的同一遍数据直接交给这里计算,不需要写完后再把整个文件读一遍
+ * 不是线程安全的,只能在一个线程中按顺序写入
+ */
+public final class StreamingDigest {
+    public static final String MD5 = "MD5";
+    public static final String SHA_256 = "SHA-256";
+    public static final String CRC32C = "CRC32C";
+
+    private static final int SCRATCH_SIZE = 8 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final String[] mAlgorithms;
+    /**
+     * 与mAlgorithms一一对应,CRC32C对应的位置为null
+     */
+    private final MessageDigest[] mMessageDigests;
+    private final Crc32c mCrc32c;
+    /**
+     * 直接内存缓冲区没有数组,先分块拷贝到这里再计算
+     */
+    private byte[] mScratch;
+    private long mSize;
+    /**
+     * 结束计算后的结果,结束前为null
+     */
+    private String[] mDigests;
+
+    /**
+     * @param algorithms {@link #MD5},{@link #SHA_256}或{@link #CRC32C}
+     * @throws IllegalArgumentException 不支持的摘要算法
+     */
+    public StreamingDigest(String... algorithms) {
+        mAlgorithms = algorithms.clone();
+        mMessageDigests = new MessageDigest[algorithms.length];
+        Crc32c crc32c = null;
+        for (int i = 0; i < algorithms.length; i++) {
+            String algorithm = algorithms[i];
+            if (CRC32C.equals(algorithm)) {
+                crc32c = new Crc32c();
+            } else if (MD5.equals(algorithm) || SHA_256.equals(algorithm)) {
+                try {
+                    mMessageDigests[i] = MessageDigest.getInstance(algorithm);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalArgumentException("digest not available: " + algorithm, e);
+                }
+            } else {
+                throw new IllegalArgumentException("unsupported digest: " + algorithm);
+            }
+        }
+        mCrc32c = crc32c;
+    }
+
+    /**
+     * 是否支持这种摘要算法
+     */
+    public static boolean isSupported(String algorithm) {
+        return MD5.equals(algorithm) || SHA_256.equals(algorithm) || CRC32C.equals(algorithm);
+    }
+
+    /**
+     * 把文件完整读一遍计算摘要,用于无法在写入时计算的情况,比如分段下载时数据不是按顺序写入的
+     */
+    public static StreamingDigest digestFile(File file, String... algorithms) throws IOException {
+        StreamingDigest digest = new StreamingDigest(algorithms);
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return digest;
+    }
+
+    /**
+     * 计算缓冲区中position到limit之间的数据,不改变缓冲区的position
+     */
+    public void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+
+        if (mScratch == null) {
+            mScratch = new byte[SCRATCH_SIZE];
+        }
+        ByteBuffer source = buffer.duplicate();
+        while (source.hasRemaining()) {
+            int len = Math.min(source.remaining(), mScratch.length);
+            source.get(mScratch, 0, len);
+            update(mScratch, 0, len);
+        }
+    }
+
+    public void update(byte[] b, int off, int len) {
+        if (mDigests != null) {
+            throw new IllegalStateException("digest already finished");
+        }
+        for (MessageDigest messageDigest : mMessageDigests) {
+            if (messageDigest != null) {
+                messageDigest.update(b, off, len);
+            }
+        }
+        if (mCrc32c != null) {
+            mCrc32c.update(b, off, len);
+        }
+        mSize += len;
+    }
+
+    /**
+     * 已经计算的字节数
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * 结束计算并返回摘要,第一次调用后不能再写入数据
+     *
+     * @return 小写十六进制的摘要, CRC32C为8个字符, 没有计算这种摘要时返回null
+     */
+    public String getDigest(String algorithm) {
+        if (mDigests == null) {
+            mDigests = new String[mAlgorithms.length];
+            for (int i = 0; i < mAlgorithms.length; i++) {
+                mDigests[i] = mMessageDigests[i] != null ? toHex(mMessageDigests[i].digest())
+                        : String.format(Locale.US, "%08x", mCrc32c.getValue());
+            }
+        }
+        for (int i = 0; i < mAlgorithms.length; i++) {
+            if (mAlgorithms[i].equals(algorithm)) {
+                return mDigests[i];
+            }
+        }
+        return null;
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >>> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,173 @@
+package com.chw.filedownloader.utils;
+
+import java.util.Set;
+
+/**
+ * @author chaihongwei 2026-10-18 21:20
+ * 带频率准入的LRU(TinyLFU)
+ * 用一个会定期减半的计数草图(count-min sketch)近似记录每个key最近的访问频率,包括已经被淘汰的key
+ * 新写入的条目先进入待准入队列,被读取过一次,或者淘汰时访问频率不低于LRU末尾的条目才会被准入,
+ * 访问频率更低时淘汰它自己,这样一次性下载的大文件不会把经常使用的小文件挤出缓存,
+ * 而以前被淘汰过又重新下载的文件能更快地留下来
+ * 待准入的条目被固定(比如刚提交,路径还没有返回给调用者)时不会被淘汰,但也不会为它淘汰频率更高的条目,
+ * 缓存暂时超出限制,下一次淘汰时再拒绝它,所以被拒绝的新条目在下一次提交后就会从缓存中删除
+ */
+public final class TinyLfuEvictionPolicy implements EvictionPolicy {
+    private static final int DEFAULT_EXPECTED_ENTRIES = 1024;
+
+    /**
+     * 已经准入的条目,按访问顺序排列
+     */
+    private final CompactLruIndex mEntries = new CompactLruIndex();
+    /**
+     * 还没有准入的新条目,按访问顺序排列,淘汰时最早的一个与LRU的末尾比较访问频率
+     */
+    private final CompactLruIndex mCandidates = new CompactLruIndex();
+    private FrequencySketch mSketch;
+
+    public TinyLfuEvictionPolicy() {
+        this(DEFAULT_EXPECTED_ENTRIES);
+    }
+
+    /**
+     * @param expectedEntries 预计的条目个数,决定计数草图的大小,条目变多时会自动扩大
+     */
+    public TinyLfuEvictionPolicy(int expectedEntries) {
+        mSketch = new FrequencySketch(Math.max(16, expectedEntries));
+    }
+
+    @Override
+    public synchronized void onAccess(String key) {
+        mSketch.increment(key);
+        //写入后又被读取过,准入
+        if (mCandidates.remove(key)) {
+            mEntries.add(key);
+        } else {
+            mEntries.touch(key);
+        }
+    }
+
+    @Override
+    public synchronized void onWrite(String key, long size) {
+        mSketch.increment(key);
+        if (mEntries.touch(key) || !mCandidates.add(key)) {
+            return;
+        }
+        int entries = mEntries.size() + mCandidates.size();
+        if (entries > mSketch.getCapacity()) {
+            mSketch = new FrequencySketch(entries * 2);
+        }
+    }
+
+    @Override
+    public synchronized void onRemove(String key) {
+        if (!mCandidates.remove(key)) {
+            mEntries.remove(key);
+        }
+    }
+
+    @Override
+    public synchronized String selectVictim(Set<String> skipped) {
+        String victim = eldest(mEntries, skipped);
+        String candidate = eldest(mCandidates, skipped);
+        if (candidate != null) {
+            //频率相同时准入新条目,冷启动时所有条目频率都很低,这时退化为LRU
+            if (victim == null || mSketch.frequency(candidate) < mSketch.frequency(victim)) {
+                return candidate;
+            }
+            mCandidates.remove(candidate);
+            mEntries.add(candidate);
+            return victim;
+        }
+
+        //被固定的新条目解除固定后会被拒绝,不为它淘汰频率更高的条目
+        if (victim != null) {
+            int frequency = mSketch.frequency(victim);
+            for (int slot = mCandidates.eldest(); slot != CompactLruIndex.NIL; slot = mCandidates.newer(slot)) {
+                if (mSketch.frequency(mCandidates.keyAt(slot)) < frequency) {
+                    return null;
+                }
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * 最久没有访问并且没有被跳过的key
+     */
+    private static String eldest(CompactLruIndex index, Set<String> skipped) {
+        for (int slot = index.eldest(); slot != CompactLruIndex.NIL; slot = index.newer(slot)) {
+            String key = index.keyAt(slot);
+            if (!skipped.contains(key)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 4行的count-min sketch,每个计数器最大15,总计数达到容量的10倍时所有计数器减半,
+     * 让很久以前的访问逐渐失去作用
+     */
+    private static final class FrequencySketch {
+        private static final int ROWS = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x97CB3127, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final byte[][] mTable;
+        private final int mMask;
+        private final int mCapacity;
+        private final int mSampleSize;
+        private int mSize;
+
+        FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(16, capacity - 1)) << 1;
+            mTable = new byte[ROWS][width];
+            mMask = width - 1;
+            mCapacity = capacity;
+            mSampleSize = 10 * width;
+        }
+
+        int getCapacity() {
+            return mCapacity;
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            boolean added = false;
+            for (int i = 0; i < ROWS; i++) {
+                int index = indexOf(hash, i);
+                if (mTable[i][index] < MAX_COUNT) {
+                    mTable[i][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++mSize >= mSampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < ROWS; i++) {
+                frequency = Math.min(frequency, mTable[i][indexOf(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % ROWS];
+            return (h ^ (h >>> 16)) & mMask;
+        }
+
+        private void reset() {
+            for (byte[] row : mTable) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = (byte) (row[i] >>> 1);
+                }
+            }
+            mSize /= 2;
+        }
+    }
+}
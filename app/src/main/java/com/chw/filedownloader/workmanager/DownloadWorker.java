@@ -8,7 +8,8 @@ import androidx.work.Data;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
-import com.chw.filedownloader.IDownloadListener;
+import com.chw.filedownloader.DownloadScheduler;
+import com.chw.filedownloader.IDownloadCallback;
 import com.chw.filedownloader.constant.Constants;
 import com.chw.filedownloader.FileDownloader;
 
@@ -16,7 +17,11 @@ import com.chw.filedownloader.FileDownloader;
  * @author chaihongwei 2020-07-10 08:34
  * 用于文件下载的后台任务
  */
-public class DownloadWorker extends Worker implements IDownloadListener {
+public class DownloadWorker extends Worker implements IDownloadCallback {
+    /**
+     * 调度器中的下载任务,任务被停止时取消,立即让出调度器的名额
+     */
+    private volatile DownloadScheduler.ScheduledDownload mDownload;
 
     public DownloadWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
         super(context, workerParams);
@@ -30,7 +35,22 @@ public class DownloadWorker extends Worker implements IDownloadListener {
 
         //获取输入参数
         String fileUrl = getInputData().getString(Constants.KEY_DOWNLOAD_FILE_URL);
-        final String cachePath = FileDownloader.getInstance(getApplicationContext(), this).download(fileUrl);
+        //后台下载使用低优先级,用户主动发起的下载会优先执行
+        DownloadScheduler.ScheduledDownload download = FileDownloader.getInstance(getApplicationContext())
+                .getScheduler().enqueue(fileUrl, DownloadScheduler.PRIORITY_LOW, this);
+        mDownload = download;
+        //入队前已经被停止时onStopped中还没有可以取消的任务
+        if (isStopped()) {
+            download.cancel();
+        }
+
+        String cachePath;
+        try {
+            cachePath = download.await();
+        } catch (InterruptedException e) {
+            download.cancel();
+            return Result.retry();
+        }
 
         if (TextUtils.isEmpty(cachePath)) {
             return Result.retry();
@@ -45,6 +65,15 @@ public class DownloadWorker extends Worker implements IDownloadListener {
         return Result.success(outputData);
     }
 
+    @Override
+    public void onStopped() {
+        super.onStopped();
+        DownloadScheduler.ScheduledDownload download = mDownload;
+        if (download != null) {
+            download.cancel();
+        }
+    }
+
     @Override
     public boolean isCanceled() {
         return isStopped();
@@ -60,4 +89,9 @@ public class DownloadWorker extends Worker implements IDownloadListener {
         //设置执行进度
         setProgressAsync(progressData);
     }
+
+    @Override
+    public void onComplete(String cachePath) {
+        //结果在doWork中通过await获取
+    }
 }
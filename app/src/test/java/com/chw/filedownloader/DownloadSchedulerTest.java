@@ -0,0 +1,192 @@
+package com.chw.filedownloader;
+
+import com.chw.filedownloader.config.FileDownloaderConfig;
+import com.chw.filedownloader.transport.LocalTransport;
+import com.chw.filedownloader.transport.Transport;
+import com.chw.filedownloader.transport.TransportRequest;
+import com.chw.filedownloader.transport.TransportResponse;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * @author chaihongwei 2026-10-18 23:58
+ * 抢占,暂停和取消后,被停止的下载线程退出前仍然占用名额,同时打开的连接数不超过限制
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DownloadSchedulerTest {
+    private static final String HOST_A = "http://a.example.com/";
+    private static final String HOST_B = "http://b.example.com/";
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private LocalTransport mLocalTransport;
+    private SlowTransport mTransport;
+    private DownloadScheduler mScheduler;
+
+    @Before
+    public void setUp() throws IOException {
+        mLocalTransport = new LocalTransport();
+        mTransport = new SlowTransport(mLocalTransport);
+        FileDownloader fileDownloader = FileDownloader.getInstance(
+                new FileDownloaderConfig.Builder(RuntimeEnvironment.application)
+                        .setCacheDir(mTemporaryFolder.newFolder("cache"))
+                        .setTransport(mTransport)
+                        .setSegmentCount(1)
+                        .setMaxConcurrentDownloads(1)
+                        .build());
+        mScheduler = fileDownloader.getScheduler();
+    }
+
+    @Test
+    public void preemptedDownloadKeepsSlotUntilItStops() throws Exception {
+        DownloadScheduler.ScheduledDownload low = mScheduler.enqueue(put(HOST_A + "low", 1),
+                DownloadScheduler.PRIORITY_LOW, null);
+        mTransport.awaitOpened(1);
+        DownloadScheduler.ScheduledDownload high = mScheduler.enqueue(put(HOST_B + "high", 2),
+                DownloadScheduler.PRIORITY_HIGH, null);
+
+        assertFalse(high.await().isEmpty());
+        assertFalse(low.await().isEmpty());
+        assertEquals(1, mTransport.getMaxOpened());
+    }
+
+    @Test
+    public void pausedAndCanceledDownloadsKeepSlotUntilTheyStop() throws Exception {
+        DownloadScheduler.ScheduledDownload paused = mScheduler.enqueue(put(HOST_A + "paused", 1),
+                DownloadScheduler.PRIORITY_NORMAL, null);
+        DownloadScheduler.ScheduledDownload canceled = mScheduler.enqueue(put(HOST_A + "canceled", 2),
+                DownloadScheduler.PRIORITY_NORMAL, null);
+        DownloadScheduler.ScheduledDownload last = mScheduler.enqueue(put(HOST_B + "last", 3),
+                DownloadScheduler.PRIORITY_NORMAL, null);
+
+        mTransport.awaitOpened(1);
+        paused.pause();
+        mTransport.awaitOpened(2);
+        canceled.cancel();
+
+        assertFalse(last.await().isEmpty());
+        assertEquals("", canceled.await());
+        assertEquals(DownloadScheduler.STATE_PAUSED, paused.getState());
+        paused.resume();
+        assertFalse(paused.await().isEmpty());
+        assertEquals(1, mTransport.getMaxOpened());
+    }
+
+    private String put(String url, long seed) {
+        byte[] data = new byte[64 * 1024];
+        new Random(seed).nextBytes(data);
+        mLocalTransport.put(url, data, "\"" + seed + "\"", null);
+        return url;
+    }
+
+    /**
+     * 每次读取都等待一段时间,被停止的下载线程要过一会儿才退出,同时统计打开的连接数
+     */
+    private static final class SlowTransport implements Transport {
+        private final Transport mTransport;
+        private int mOpened;
+        private int mTotalOpened;
+        private int mMaxOpened;
+
+        SlowTransport(Transport transport) {
+            this.mTransport = transport;
+        }
+
+        synchronized int getMaxOpened() {
+            return mMaxOpened;
+        }
+
+        /**
+         * 等待累计打开的连接数达到count
+         */
+        synchronized void awaitOpened(int count) throws InterruptedException {
+            while (mTotalOpened < count) {
+                wait();
+            }
+        }
+
+        private synchronized void onOpen() {
+            mOpened++;
+            mTotalOpened++;
+            mMaxOpened = Math.max(mMaxOpened, mOpened);
+            notifyAll();
+        }
+
+        private synchronized void onClose() {
+            mOpened--;
+        }
+
+        @Override
+        public TransportResponse execute(TransportRequest request) throws IOException {
+            final TransportResponse response = mTransport.execute(request);
+            onOpen();
+            return new TransportResponse() {
+                private boolean mClosed;
+
+                @Override
+                public int getCode() {
+                    return response.getCode();
+                }
+
+                @Override
+                public String getHeader(String name) {
+                    return response.getHeader(name);
+                }
+
+                @Override
+                public long getContentLength() {
+                    return response.getContentLength();
+                }
+
+                @Override
+                public InputStream getBody() throws IOException {
+                    return new FilterInputStream(response.getBody()) {
+                        @Override
+                        public int read(byte[] b, int off, int len) throws IOException {
+                            try {
+                                Thread.sleep(20);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            return super.read(b, off, Math.min(len, 4096));
+                        }
+                    };
+                }
+
+                @Override
+                public void close() {
+                    response.close();
+                    release();
+                }
+
+                @Override
+                public void abort() {
+                    response.abort();
+                    release();
+                }
+
+                private synchronized void release() {
+                    if (!mClosed) {
+                        mClosed = true;
+                        onClose();
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.chw.filedownloader;
+
+import com.chw.filedownloader.config.FileDownloaderConfig;
+import com.chw.filedownloader.transport.LocalTransport;
+import com.chw.filedownloader.transport.TransportRequest;
+import com.chw.filedownloader.utils.DiskLruCache;
+import com.chw.filedownloader.utils.EncryptUtils;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author chaihongwei 2026-10-18 21:10
+ * 通过{@link LocalTransport}在进程内驱动FileDownloader,不经过网络,
+ * 检查断点续传的Range和If-Range,条件请求的304,以及连接提前断开时的处理
+ */
+@RunWith(RobolectricTestRunner.class)
+public class FileDownloaderTest {
+    private static final String URL = "local://cdn.example.com/file.bin";
+    private static final String ETAG = "\"v1\"";
+
+    /**
+     * 在下载线程中直接回调进度,不经过主线程
+     */
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private LocalTransport mTransport;
+    private File mCacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mTransport = new LocalTransport();
+        mCacheDir = mTemporaryFolder.newFolder("cache");
+    }
+
+    @Test
+    public void downloadCachesFileAndServesHitsFromCache() throws IOException {
+        byte[] data = randomBytes(300 * 1024, 1);
+        mTransport.put(URL, data, ETAG, null);
+        FileDownloader fileDownloader = newFileDownloader(newConfig());
+
+        String path = fileDownloader.download(URL);
+        assertArrayEquals(data, readFile(path));
+        assertEquals(1, mTransport.getRequestCount());
+
+        assertEquals(path, fileDownloader.download(URL));
+        assertEquals(1, mTransport.getRequestCount());
+    }
+
+    @Test
+    public void canceledDownloadResumesWithRangeAndIfRange() throws IOException {
+        byte[] data = randomBytes(1024 * 1024, 2);
+        mTransport.put(URL, data, ETAG, null);
+        FileDownloader fileDownloader = newFileDownloader(newConfig());
+
+        assertEquals("", fileDownloader.download(URL, new CancelAfterListener(256 * 1024)));
+
+        String path = fileDownloader.download(URL);
+        assertArrayEquals(data, readFile(path));
+
+        TransportRequest resume = lastRequest();
+        String range = resume.getHeader("Range");
+        assertNotNull(range);
+        long start = Long.parseLong(range.substring("bytes=".length(), range.indexOf('-')));
+        assertTrue("resume should skip the downloaded part: " + range, start >= 256 * 1024);
+        assertTrue(range.endsWith("-" + (data.length - 1)));
+        assertEquals(ETAG, resume.getHeader("If-Range"));
+    }
+
+    @Test
+    public void resumeRestartsWhenRemoteFileChanged() throws IOException {
+        mTransport.put(URL, randomBytes(1024 * 1024, 3), ETAG, null);
+        FileDownloader fileDownloader = newFileDownloader(newConfig());
+        assertEquals("", fileDownloader.download(URL, new CancelAfterListener(256 * 1024)));
+
+        //If-Range与新的ETag不一致,服务器返回整个新文件,已经下载的部分作废
+        byte[] changed = randomBytes(900 * 1024, 4);
+        mTransport.put(URL, changed, "\"v2\"", null);
+
+        assertArrayEquals(changed, readFile(fileDownloader.download(URL)));
+    }
+
+    @Test
+    public void staleEntryIsRevalidatedWithNotModified() throws IOException {
+        byte[] data = randomBytes(200 * 1024, 5);
+        mTransport.put(URL, data, ETAG, null);
+        FileDownloader fileDownloader = newFileDownloader(newConfig().setCacheTtlMillis(0));
+
+        String path = fileDownloader.download(URL);
+        assertEquals(1, mTransport.getRequestCount());
+
+        //已经过期,条件请求返回304后继续使用缓存
+        assertEquals(path, fileDownloader.download(URL));
+        assertEquals(2, mTransport.getRequestCount());
+        TransportRequest revalidate = lastRequest();
+        assertEquals(ETAG, revalidate.getHeader("If-None-Match"));
+        assertEquals("bytes=0-0", revalidate.getHeader("Range"));
+        assertArrayEquals(data, readFile(path));
+
+        //服务器上的文件已经变化,重新下载
+        byte[] changed = randomBytes(100 * 1024, 6);
+        mTransport.put(URL, changed, "\"v2\"", null);
+        assertArrayEquals(changed, readFile(fileDownloader.download(URL)));
+    }
+
+    @Test
+    public void truncatedBodyIsNotCached() throws IOException {
+        byte[] data = randomBytes(300 * 1024, 7);
+        mTransport.putTruncated(URL, data, ETAG, 100 * 1024);
+        FileDownloader fileDownloader = newFileDownloader(newConfig());
+
+        assertEquals("", fileDownloader.download(URL));
+        assertNull(fileDownloader.openCachedFile(URL));
+
+        mTransport.put(URL, data, ETAG, null);
+        assertArrayEquals(data, readFile(fileDownloader.download(URL)));
+    }
+
+    @Test
+    public void truncatedSegmentResumesFromRecord() throws IOException {
+        byte[] data = randomBytes(2560 * 1024, 8);
+        int truncateAt = 1536 * 1024;
+        mTransport.putTruncated(URL, data, ETAG, truncateAt);
+        FileDownloader fileDownloader = newFileDownloader(newConfig().setSegmentCount(2));
+
+        assertEquals("", fileDownloader.download(URL));
+
+        //第二段从断开的位置续传,第一段如果因为第二段失败而中止,也只续传自己没有下载的部分
+        mTransport.put(URL, data, ETAG, null);
+        int requestCount = mTransport.getRequestCount();
+        assertArrayEquals(data, readFile(fileDownloader.download(URL)));
+
+        List<TransportRequest> requests = mTransport.getRequests();
+        List<String> ranges = new ArrayList<>();
+        for (TransportRequest resume : requests.subList(requestCount, requests.size())) {
+            String range = resume.getHeader("Range");
+            assertNotNull(range);
+            assertFalse("resume should not restart the whole file: " + range,
+                    range.equals("bytes=0-" + (data.length - 1)));
+            assertEquals(ETAG, resume.getHeader("If-Range"));
+            ranges.add(range);
+        }
+        assertTrue(ranges.toString(), ranges.contains("bytes=" + truncateAt + "-" + (data.length - 1)));
+    }
+
+    @Test
+    public void openCachedFileReturnsSnapshotOfDownloadedFile() throws IOException {
+        byte[] data = randomBytes(64 * 1024, 9);
+        mTransport.put(URL, data, ETAG, null);
+        FileDownloader fileDownloader = newFileDownloader(newConfig());
+        assertFalse(fileDownloader.download(URL).isEmpty());
+
+        DiskLruCache.Snapshot snapshot = fileDownloader.openCachedFile(URL);
+        assertNotNull(snapshot);
+        try {
+            assertEquals(data.length, snapshot.getChannel(FileDownloader.CACHE_INDEX_FILE).size());
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * 旧版本的缓存每个条目只有文件本身,没有新鲜度信息,升级后继续使用,不重新下载
+     */
+    @Test
+    public void cacheWrittenByOlderVersionIsKept() throws IOException {
+        byte[] data = randomBytes(16 * 1024, 13);
+        String key = EncryptUtils.hashKeyForDisk(URL);
+        FileOutputStream out = new FileOutputStream(new File(mCacheDir, "journal"));
+        try {
+            out.write(("libcore.io.DiskLruCache\n1\n1\n1\n\nCLEAN " + key + " " + data.length + "\n")
+                    .getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        out = new FileOutputStream(new File(mCacheDir, key + ".0"));
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+
+        FileDownloader fileDownloader = newFileDownloader(newConfig());
+        assertArrayEquals(data, readFile(fileDownloader.download(URL)));
+        assertEquals(0, mTransport.getRequestCount());
+    }
+
+    @Test
+    public void newDownloadSurvivesTinyLfuAdmission() throws IOException, InterruptedException {
+        assertNewDownloadSurvivesEviction(FileDownloaderConfig.EVICTION_TINY_LFU, false);
+        assertNewDownloadSurvivesEviction(FileDownloaderConfig.EVICTION_TINY_LFU, true);
+    }
+
+    @Test
+    public void newDownloadSurvivesGreedyDualSize() throws IOException, InterruptedException {
+        assertNewDownloadSurvivesEviction(FileDownloaderConfig.EVICTION_GREEDY_DUAL_SIZE, false);
+        assertNewDownloadSurvivesEviction(FileDownloaderConfig.EVICTION_GREEDY_DUAL_SIZE, true);
+    }
+
+    /**
+     * 缓存中是经常访问的小文件,新下载的大文件超出缓存大小后,
+     * 淘汰策略更想淘汰新文件,download()返回的路径仍然必须可用
+     */
+    private void assertNewDownloadSurvivesEviction(int evictionPolicy, boolean contentDedup)
+            throws IOException, InterruptedException {
+        mCacheDir = mTemporaryFolder.newFolder();
+        FileDownloader fileDownloader = newFileDownloader(newConfig()
+                .setMaxCacheSize(1024 * 1024)
+                .setEvictionPolicy(evictionPolicy)
+                .setContentDedupEnabled(contentDedup));
+
+        for (int i = 0; i < 8; i++) {
+            String url = URL + "?small=" + i;
+            mTransport.put(url, randomBytes(100 * 1024, 100 + i), ETAG, null);
+            for (int j = 0; j < 5; j++) {
+                assertFalse(fileDownloader.download(url).isEmpty());
+            }
+        }
+
+        byte[] data = randomBytes(400 * 1024, 10);
+        mTransport.put(URL, data, ETAG, null);
+        String path = fileDownloader.download(URL);
+        //提交触发的淘汰如果留到后台执行,就会在返回路径之后删除新文件
+        Thread.sleep(200);
+        assertArrayEquals(data, readFile(path));
+    }
+
+    private FileDownloaderConfig.Builder newConfig() {
+        return new FileDownloaderConfig.Builder(RuntimeEnvironment.application)
+                .setCacheDir(mCacheDir)
+                .setTransport(mTransport)
+                .setProgressExecutor(DIRECT_EXECUTOR)
+                .setProgressIntervalMillis(0)
+                .setProgressPercentDelta(0);
+    }
+
+    private static FileDownloader newFileDownloader(FileDownloaderConfig.Builder builder) {
+        return FileDownloader.getInstance(builder.build());
+    }
+
+    private TransportRequest lastRequest() {
+        List<TransportRequest> requests = mTransport.getRequests();
+        return requests.get(requests.size() - 1);
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] readFile(String path) throws IOException {
+        assertFalse("download failed", path.isEmpty());
+        File file = new File(path);
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int len;
+            while (offset < data.length && (len = in.read(data, offset, data.length - offset)) != -1) {
+                offset += len;
+            }
+            return Arrays.copyOf(data, offset);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 下载到指定大小后取消
+     */
+    private static final class CancelAfterListener implements IDownloadListener {
+        private final long mLimit;
+        private volatile boolean mCanceled;
+
+        CancelAfterListener(long limit) {
+            this.mLimit = limit;
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return mCanceled;
+        }
+
+        @Override
+        public void onProgress(int progress, long downloadedSize, long totalSize) {
+            if (downloadedSize >= mLimit) {
+                mCanceled = true;
+            }
+        }
+    }
+}
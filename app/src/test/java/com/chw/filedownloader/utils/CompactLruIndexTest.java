@@ -0,0 +1,85 @@
+package com.chw.filedownloader.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author chaihongwei 2026-10-18 23:40
+ * 用按访问顺序排列的LinkedHashMap作为参照,随机操作CompactLruIndex并比较结果
+ */
+public class CompactLruIndexTest {
+
+    @Test
+    public void matchesAccessOrderedLinkedHashMap() {
+        Random random = new Random(23);
+        //摘要格式和普通的key混在一起,数量足够多时会多次扩容,删除时会移动探测链
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            keys.add(String.format(Locale.US, "%016x%016x", random.nextLong(), random.nextLong()));
+        }
+        for (int i = 0; i < 1000; i++) {
+            keys.add("raw-key-" + i);
+        }
+
+        CompactLruIndex index = new CompactLruIndex();
+        LinkedHashMap<String, Boolean> expected = new LinkedHashMap<>(16, 0.75f, true);
+        for (int op = 0; op < 400000; op++) {
+            String key = keys.get(random.nextInt(keys.size()));
+            int action = random.nextInt(10);
+            if (action < 4) {
+                assertEquals(expected.put(key, Boolean.TRUE) == null, index.add(key));
+            } else if (action < 7) {
+                assertEquals(expected.get(key) != null, index.touch(key));
+            } else if (action < 9) {
+                assertEquals(expected.remove(key) != null, index.remove(key));
+            } else {
+                //从最旧的一端淘汰,与淘汰策略的用法一样
+                Iterator<String> iterator = expected.keySet().iterator();
+                if (iterator.hasNext()) {
+                    String eldest = iterator.next();
+                    assertEquals(eldest, index.keyAt(index.eldest()));
+                    iterator.remove();
+                    assertEquals(true, index.remove(eldest));
+                } else {
+                    assertEquals(CompactLruIndex.NIL, index.eldest());
+                }
+            }
+            assertEquals(expected.size(), index.size());
+            if (op % 5000 == 0) {
+                assertSameOrder(expected, index);
+            }
+        }
+        assertSameOrder(expected, index);
+    }
+
+    @Test
+    public void shrinksToEmptyAndIsReusable() {
+        CompactLruIndex index = new CompactLruIndex();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 100; i++) {
+                index.add(String.format(Locale.US, "%032x", i));
+            }
+            for (int i = 0; i < 100; i++) {
+                assertEquals(true, index.remove(String.format(Locale.US, "%032x", i)));
+            }
+            assertEquals(0, index.size());
+            assertEquals(CompactLruIndex.NIL, index.eldest());
+        }
+    }
+
+    private static void assertSameOrder(LinkedHashMap<String, Boolean> expected, CompactLruIndex index) {
+        List<String> actual = new ArrayList<>();
+        for (int slot = index.eldest(); slot != CompactLruIndex.NIL; slot = index.newer(slot)) {
+            actual.add(index.keyAt(slot));
+        }
+        assertEquals(new ArrayList<>(expected.keySet()), actual);
+    }
+}
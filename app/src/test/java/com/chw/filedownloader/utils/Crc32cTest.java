@@ -0,0 +1,113 @@
+package com.chw.filedownloader.utils;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author chaihongwei 2026-10-18 23:50
+ * Crc32c与标准测试向量,逐位计算的参照实现,以及JDK 9以上的java.util.zip.CRC32C比较
+ */
+public class Crc32cTest {
+
+    /**
+     * RFC 3720附录B.4的测试向量,以及常用的"123456789"
+     */
+    @Test
+    public void matchesKnownVectors() {
+        assertEquals(0xe3069283L, crc32c("123456789".getBytes(Charset.forName("US-ASCII"))));
+        assertEquals(0x8a9136aaL, crc32c(new byte[32]));
+
+        byte[] ones = new byte[32];
+        byte[] ascending = new byte[32];
+        byte[] descending = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            ones[i] = (byte) 0xff;
+            ascending[i] = (byte) i;
+            descending[i] = (byte) (31 - i);
+        }
+        assertEquals(0x62a8ab43L, crc32c(ones));
+        assertEquals(0x46dd794eL, crc32c(ascending));
+        assertEquals(0x113fdb5cL, crc32c(descending));
+        assertEquals(0L, crc32c(new byte[0]));
+    }
+
+    /**
+     * 随机的长度,偏移和分块方式,覆盖每次8个字节的主循环和剩余字节的处理
+     */
+    @Test
+    public void matchesBitwiseReference() {
+        Random random = new Random(3720);
+        for (int round = 0; round < 2000; round++) {
+            byte[] data = new byte[random.nextInt(300)];
+            random.nextBytes(data);
+            int off = data.length > 0 ? random.nextInt(data.length) : 0;
+            int len = data.length - off > 0 ? random.nextInt(data.length - off + 1) : 0;
+
+            Crc32c crc = new Crc32c();
+            int position = off;
+            while (position < off + len) {
+                if (random.nextInt(8) == 0) {
+                    crc.update(data[position++]);
+                } else {
+                    int chunk = Math.min(off + len - position, 1 + random.nextInt(40));
+                    crc.update(data, position, chunk);
+                    position += chunk;
+                }
+            }
+            assertEquals(bitwise(data, off, len), crc.getValue());
+
+            crc.reset();
+            crc.update(data, off, len);
+            assertEquals(bitwise(data, off, len), crc.getValue());
+        }
+    }
+
+    /**
+     * java.util.zip.CRC32C从JDK 9才有,更早的JDK上跳过
+     */
+    @Test
+    public void matchesJdkCrc32c() throws Exception {
+        Class<?> jdkClass;
+        try {
+            jdkClass = Class.forName("java.util.zip.CRC32C");
+        } catch (ClassNotFoundException e) {
+            Assume.assumeTrue("java.util.zip.CRC32C is not available", false);
+            return;
+        }
+
+        Random random = new Random(9);
+        for (int round = 0; round < 500; round++) {
+            byte[] data = new byte[random.nextInt(5000)];
+            random.nextBytes(data);
+            Checksum jdk = (Checksum) jdkClass.newInstance();
+            jdk.update(data, 0, data.length);
+            assertEquals(jdk.getValue(), crc32c(data));
+        }
+    }
+
+    private static long crc32c(byte[] data) {
+        Crc32c crc = new Crc32c();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    /**
+     * 按定义逐位计算,不查表
+     */
+    private static long bitwise(byte[] data, int off, int len) {
+        int crc = 0xffffffff;
+        for (int i = off; i < off + len; i++) {
+            crc ^= data[i] & 0xff;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+            }
+        }
+        return ~crc & 0xffffffffL;
+    }
+}
@@ -0,0 +1,306 @@
+package com.chw.filedownloader.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author chaihongwei 2026-10-18 21:40
+ * DiskLruCache在不同淘汰策略下的行为,以及多线程读写后重新打开的一致性
+ */
+public class DiskLruCacheTest {
+    private static final int MAX_SIZE = 1000;
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    /**
+     * 固定期间既不淘汰新条目,也不为它淘汰访问频率更高的条目,解除固定后的下一次淘汰才拒绝它
+     */
+    @Test
+    public void tinyLfuRejectsNewEntryAfterUnpin() throws IOException {
+        DiskLruCache cache = openWithFrequentSmallEntries(new TinyLfuEvictionPolicy());
+        try {
+            DiskLruCache.Snapshot snapshot = commitAndPin(cache, "pinned", 300);
+            try {
+                cache.flush();
+                assertEquals(value(300), snapshot.getString(0));
+                assertEquals(1100, cache.size());
+            } finally {
+                snapshot.close();
+            }
+
+            cache.flush();
+            assertNull(cache.get("pinned"));
+            assertEquals(800, cache.size());
+            for (int i = 0; i < 8; i++) {
+                assertNotNull(cache.get("small" + i));
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * 固定的新条目在提交时的淘汰中保留下来,淘汰的是其他条目,解除固定后不会再淘汰它
+     */
+    @Test
+    public void greedyDualSizeKeepsPinnedLargeEntry() throws IOException {
+        DiskLruCache cache = openWithFrequentSmallEntries(new GreedyDualSizeEvictionPolicy());
+        try {
+            DiskLruCache.Snapshot snapshot = commitAndPin(cache, "pinned", 300);
+            try {
+                cache.flush();
+                assertEquals(value(300), snapshot.getString(0));
+            } finally {
+                snapshot.close();
+            }
+
+            cache.flush();
+            DiskLruCache.Snapshot reopened = cache.get("pinned");
+            assertNotNull(reopened);
+            reopened.close();
+            assertEquals(900, cache.size());
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * 缓存中是经常读取的小条目,普通提交的大条目超出缓存大小后立即被淘汰
+     */
+    private DiskLruCache openWithFrequentSmallEntries(EvictionPolicy evictionPolicy) throws IOException {
+        DiskLruCache cache = DiskLruCache.open(mTemporaryFolder.newFolder(), 1, 2, MAX_SIZE, evictionPolicy);
+        for (int i = 0; i < 8; i++) {
+            set(cache, "small" + i, 100);
+            for (int j = 0; j < 5; j++) {
+                cache.get("small" + i).close();
+            }
+        }
+
+        set(cache, "rejected", 300);
+        cache.flush();
+        assertNull(cache.get("rejected"));
+        assertEquals(800, cache.size());
+        return cache;
+    }
+
+    /**
+     * 旧版本每个条目只有一个值,打开时保留原有的条目,缺少的值为空,日志改写为新的格式
+     */
+    @Test
+    public void openKeepsEntriesOfJournalWithFewerValues() throws IOException {
+        File directory = mTemporaryFolder.newFolder();
+        write(new File(directory, DiskLruCache.JOURNAL_FILE), DiskLruCache.MAGIC + "\n"
+                + DiskLruCache.VERSION_1 + "\n1\n1\n\n"
+                + "CLEAN kept 5\n"
+                + "DIRTY partial\n");
+        write(new File(directory, "kept.0"), "value");
+        write(new File(directory, "partial.0.tmp"), "par");
+        File unrelated = new File(directory, "unrelated.download");
+        write(unrelated, "unrelated");
+
+        DiskLruCache cache = DiskLruCache.open(directory, 1, 2, MAX_SIZE);
+        try {
+            DiskLruCache.Snapshot snapshot = cache.get("kept");
+            assertNotNull(snapshot);
+            assertEquals("value", snapshot.getString(0));
+            assertEquals("", snapshot.getString(1));
+            snapshot.close();
+            assertNull(cache.get("partial"));
+            assertEquals(5, cache.size());
+            assertTrue(unrelated.exists());
+        } finally {
+            cache.close();
+        }
+
+        //改写后的日志可以直接打开
+        DiskLruCache reopened = DiskLruCache.open(directory, 1, 2, MAX_SIZE);
+        try {
+            DiskLruCache.Snapshot snapshot = reopened.get("kept");
+            assertNotNull(snapshot);
+            assertEquals("value", snapshot.getString(0));
+            snapshot.close();
+            assertEquals(5, reopened.size());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static DiskLruCache.Snapshot commitAndPin(DiskLruCache cache, String key, int size) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value(size));
+        editor.set(1, "");
+        DiskLruCache.Snapshot snapshot = editor.commitAndPin();
+        assertNotNull(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * 多个线程同时编辑,读取和删除,缓存持续超出大小限制在后台淘汰,
+     * 读到的两个值必须来自同一次提交,关闭后换一种目录结构重新打开,索引,大小和文件必须一致
+     */
+    @Test
+    public void concurrentEditGetRemoveSurvivesReopen() throws Exception {
+        final String[] keys = new String[64];
+        for (int i = 0; i < keys.length; i++) {
+            //摘要格式和普通的key都有
+            keys[i] = i % 2 == 0 ? String.format(Locale.US, "%032x", i * 0x9E3779B97F4A7C15L) : "key-" + i;
+        }
+        File directory = mTemporaryFolder.newFolder();
+        final DiskLruCache cache = DiskLruCache.open(directory, 1, 2, 16 * 1024, new LruEvictionPolicy(), false);
+        final AtomicLong version = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final long seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        stress(cache, keys, version, new Random(seed));
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        cache.close();
+
+        //换成分级目录重新打开,文件在后台迁移时也要能读到
+        DiskLruCache sharded = DiskLruCache.open(directory, 1, 2, 16 * 1024, new LruEvictionPolicy(), true);
+        assertConsistent(sharded, keys);
+        sharded.close();
+
+        DiskLruCache reopened = DiskLruCache.open(directory, 1, 2, 16 * 1024, new LruEvictionPolicy(), true);
+        try {
+            assertConsistent(reopened, keys);
+            assertEquals(0, countTmpFiles(directory));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private static void stress(DiskLruCache cache, String[] keys, AtomicLong version, Random random)
+            throws IOException {
+        for (int op = 0; op < 3000; op++) {
+            String key = keys[random.nextInt(keys.length)];
+            int action = random.nextInt(10);
+            if (action < 4) {
+                DiskLruCache.Editor editor = cache.edit(key);
+                if (editor == null) {
+                    continue;
+                }
+                String token = key + ":" + version.incrementAndGet();
+                editor.set(0, token + value(random.nextInt(600)));
+                editor.set(1, token);
+                if (random.nextInt(10) == 0) {
+                    editor.abort();
+                } else {
+                    editor.commit();
+                }
+            } else if (action < 8) {
+                DiskLruCache.Snapshot snapshot = cache.get(key);
+                if (snapshot == null) {
+                    continue;
+                }
+                try {
+                    if (random.nextInt(4) == 0) {
+                        //固定条目后从通道读取,期间不会被淘汰或者删除
+                        snapshot.getChannel(0).size();
+                    }
+                    assertSnapshot(key, snapshot);
+                } finally {
+                    snapshot.close();
+                }
+            } else {
+                cache.remove(key);
+            }
+        }
+    }
+
+    private static void assertConsistent(DiskLruCache cache, String[] keys) throws IOException {
+        long size = 0;
+        for (String key : keys) {
+            DiskLruCache.Snapshot snapshot = cache.get(key);
+            if (snapshot != null) {
+                try {
+                    size += assertSnapshot(key, snapshot);
+                } finally {
+                    snapshot.close();
+                }
+            }
+        }
+        assertEquals(size, cache.size());
+        assertTrue(cache.size() <= 16 * 1024);
+    }
+
+    /**
+     * @return 两个值的总长度
+     */
+    private static long assertSnapshot(String key, DiskLruCache.Snapshot snapshot) throws IOException {
+        String value = snapshot.getString(0);
+        String token = snapshot.getString(1);
+        assertTrue(token, token.startsWith(key + ":"));
+        assertTrue(token + " / " + value, value.startsWith(token) && value.length() >= token.length());
+        return value.length() + token.length();
+    }
+
+    private static int countTmpFiles(File directory) {
+        int count = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    count += countTmpFiles(file);
+                } else if (file.getName().endsWith(".tmp")) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void set(DiskLruCache cache, String key, int size) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value(size));
+        editor.set(1, "");
+        editor.commit();
+    }
+
+    private static String value(int size) {
+        char[] chars = new char[size];
+        Arrays.fill(chars, 'a');
+        return new String(chars);
+    }
+}
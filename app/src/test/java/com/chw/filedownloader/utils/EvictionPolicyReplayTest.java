@@ -0,0 +1,175 @@
+package com.chw.filedownloader.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author chaihongwei 2026-10-18 21:50
+ * 回放的结果必须与真实的DiskLruCache一致,否则比较出的命中率没有参考价值
+ */
+public class EvictionPolicyReplayTest {
+    private static final long MAX_SIZE = 20 * 1024;
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void lruReplayMatchesDiskLruCache() throws IOException {
+        assertReplayMatchesDiskLruCache("LRU", new LruEvictionPolicy(), new LruEvictionPolicy(), randomTrace());
+    }
+
+    @Test
+    public void tinyLfuReplayMatchesDiskLruCache() throws IOException {
+        assertReplayMatchesDiskLruCache("TinyLFU", new TinyLfuEvictionPolicy(), new TinyLfuEvictionPolicy(),
+                randomTrace());
+    }
+
+    @Test
+    public void greedyDualSizeReplayMatchesDiskLruCache() throws IOException {
+        assertReplayMatchesDiskLruCache("GreedyDual-Size",
+                new GreedyDualSizeEvictionPolicy(), new GreedyDualSizeEvictionPolicy(), randomTrace());
+    }
+
+    /**
+     * 经常使用的小文件中间夹着大量只下载一次的大文件,LRU会被这些文件冲掉,TinyLFU拒绝它们
+     */
+    @Test
+    public void tinyLfuResistsScanPollution() throws IOException {
+        Trace trace = scanPollutedTrace();
+        long lruHits = assertReplayMatchesDiskLruCache("LRU",
+                new LruEvictionPolicy(), new LruEvictionPolicy(), trace);
+        long tinyLfuHits = assertReplayMatchesDiskLruCache("TinyLFU",
+                new TinyLfuEvictionPolicy(), new TinyLfuEvictionPolicy(), trace);
+        assertTrue("LRU " + lruHits + ", TinyLFU " + tinyLfuHits, tinyLfuHits > lruHits * 3);
+    }
+
+    /**
+     * 同一个访问序列分别回放和写入真实的缓存,命中和淘汰的次数必须相同
+     * 缓存中写入的文件和FileDownloader一样通过commitAndPin提交
+     * 访问序列不能太长,否则压缩日志时的后台淘汰会在不确定的时机运行
+     *
+     * @return 命中次数
+     */
+    private long assertReplayMatchesDiskLruCache(String policyName, EvictionPolicy replayPolicy,
+                                                 EvictionPolicy cachePolicy, Trace trace) throws IOException {
+        String[] keys = trace.mKeys;
+        int[] lengths = trace.mLengths;
+        File traceFile = mTemporaryFolder.newFile();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(traceFile), "UTF-8");
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                writer.write(keys[i] + " " + lengths[i] + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        EvictionPolicyReplay.Result result = EvictionPolicyReplay.replay(policyName, replayPolicy, traceFile, MAX_SIZE);
+
+        //只有命中时才读取,与回放一样,文件大小变了的请求不算一次访问
+        Set<String> distinctKeys = new HashSet<>(Arrays.asList(keys));
+        HashMap<String, Integer> writtenLengths = new HashMap<>();
+        long hits = 0;
+        long evictions = 0;
+        DiskLruCache cache = DiskLruCache.open(mTemporaryFolder.newFolder(), 1, 1, MAX_SIZE, cachePolicy);
+        try {
+            int cachedCount = 0;
+            for (int i = 0; i < keys.length; i++) {
+                boolean cached = cache.contains(keys[i]);
+                if (cached && writtenLengths.get(keys[i]) == lengths[i]) {
+                    cache.get(keys[i]).close();
+                    hits++;
+                    continue;
+                }
+
+                DiskLruCache.Editor editor = cache.edit(keys[i]);
+                editor.set(0, value(lengths[i]));
+                editor.commitAndPin().close();
+                writtenLengths.put(keys[i], lengths[i]);
+
+                int count = countEntries(cache, distinctKeys);
+                evictions += cachedCount + (cached ? 0 : 1) - count;
+                cachedCount = count;
+                //刚提交的条目被拒绝时,缓存暂时超出限制,直到下一次提交
+                assertTrue(cache.size() <= MAX_SIZE + lengths[i]);
+            }
+        } finally {
+            cache.close();
+        }
+
+        assertEquals(result.getHits(), hits);
+        assertEquals(result.getEvictions(), evictions);
+        assertTrue("trace should evict", evictions > 0);
+        return hits;
+    }
+
+    private static Trace randomTrace() {
+        Random random = new Random(42);
+        Trace trace = new Trace(1000);
+        for (int i = 0; i < trace.mKeys.length; i++) {
+            //少数key访问得多,部分文件会变大小
+            int id = random.nextInt(4) == 0 ? random.nextInt(200) : random.nextInt(10);
+            trace.mKeys[i] = "key" + id;
+            trace.mLengths[i] = 100 + (id * 37 + (random.nextInt(20) == 0 ? 1 : 0)) % 4000;
+        }
+        return trace;
+    }
+
+    /**
+     * 30个经常使用的小文件,每3次请求中有1次是只下载一次的大文件
+     */
+    private static Trace scanPollutedTrace() {
+        Random random = new Random(1);
+        Trace trace = new Trace(1000);
+        for (int i = 0; i < trace.mKeys.length; i++) {
+            if (random.nextInt(3) == 0) {
+                trace.mKeys[i] = "scan" + i;
+                trace.mLengths[i] = 4000;
+            } else {
+                trace.mKeys[i] = "hot" + random.nextInt(30);
+                trace.mLengths[i] = 400;
+            }
+        }
+        return trace;
+    }
+
+    private static final class Trace {
+        final String[] mKeys;
+        final int[] mLengths;
+
+        Trace(int requests) {
+            mKeys = new String[requests];
+            mLengths = new int[requests];
+        }
+    }
+
+    private static int countEntries(DiskLruCache cache, Set<String> keys) {
+        int count = 0;
+        for (String key : keys) {
+            if (cache.contains(key)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String value(int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'a');
+        return new String(chars);
+    }
+}